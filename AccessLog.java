@@ -0,0 +1,225 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log of WebServer, written without slowing down the threads that serve the requests.
+ * A request is logged by copying its fields into the next free slot of a ring buffer; a single writer thread
+ * formats the slots in the Common Log Format, followed by the time taken to serve the request in microseconds,
+ * and appends them to the file in batches, with one write per batch or per full buffer. The writer is never
+ * woken up by the requests: it looks for new entries every 10 ms while the ring is empty.
+ *
+ * The ring is preallocated and claimed with a compare-and-set, so logging never locks nor allocates. When
+ * the writer falls so far behind that the ring is full, entries are dropped and counted instead of making
+ * the request wait.
+ */
+class AccessLog {
+
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * A slot of the ring. Its fields are written by the thread that claimed it, then published by setting
+     * sequence, which the writer thread reads before the fields.
+     */
+    private static class Entry {
+        volatile long sequence = -1;
+        long time;
+        InetAddress client;
+        String method;
+        String target;
+        String version;
+        int status;
+        long bytes;
+        long micros;
+    }
+
+    private final Entry[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final StringBuilder line = new StringBuilder(256);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer output = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private long lastSecond = -1;
+    private String lastDate;
+
+    /**
+     * Opens a log, appending to the file, and starts its writer thread.
+     * @param file The log file, created if it does not exist.
+     * @param capacity The amount of entries the ring holds, rounded up to a power of two.
+     * @throws IOException If the file cannot be opened.
+     */
+    AccessLog(File file, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+        mask = size - 1;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        writer = new Thread(this::writeLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs a request. Called by the threads that serve requests.
+     * @param client The address of the client.
+     * @param method The method of the request, or null if the request could not be parsed.
+     * @param target The target of the request.
+     * @param version The version of the request.
+     * @param status The status of the response.
+     * @param bytes The bytes of the response body.
+     * @param micros The time taken to parse the request and write its response, in microseconds.
+     * @return True if the request was logged, false if it was dropped because the ring was full.
+     */
+    boolean log(InetAddress client, String method, String target, String version, int status, long bytes, long micros) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) sequence & mask];
+        entry.time = System.currentTimeMillis();
+        entry.client = client;
+        entry.method = method;
+        entry.target = target;
+        entry.version = version;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.micros = micros;
+        entry.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * @return The amount of entries dropped because the ring was full.
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the entries still in the ring and closes the file. Entries logged afterwards are lost.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                boolean stopping = closed;
+                if (!drain() && !stopping) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                } else if (stopping) {
+                    drain(); // what was published between the read of closed and the first drain
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Access log stopped: " + e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Formats every published entry and writes them to the file.
+     * @return True if there was at least one entry.
+     */
+    private boolean drain() throws IOException {
+        long next = consumed;
+        long first = next;
+        while (true) {
+            Entry entry = ring[(int) next & mask];
+            if (entry.sequence != next) {
+                break;
+            }
+            format(entry);
+            entry.client = null;
+            entry.method = null;
+            entry.target = null;
+            next++;
+            consumed = next; // frees the slot
+        }
+        flush();
+        return next > first;
+    }
+
+    private void format(Entry entry) throws IOException {
+        long second = entry.time / 1000;
+        if (second != lastSecond) {
+            lastDate = DATE.format(Instant.ofEpochSecond(second));
+            lastSecond = second;
+        }
+        line.setLength(0);
+        line.append(entry.client != null ? entry.client.getHostAddress() : "-").append(" - - [").append(lastDate)
+                .append("] \"");
+        if (entry.method != null) {
+            line.append(entry.method).append(' ').append(entry.target).append(' ').append(entry.version);
+        } else {
+            line.append('-');
+        }
+        line.append("\" ").append(entry.status).append(' ').append(entry.bytes).append(' ').append(entry.micros)
+                .append('\n');
+
+        CharBuffer chars = CharBuffer.wrap(line);
+        while (true) {
+            encoder.reset();
+            encoder.encode(chars, output, true);
+            if (!chars.hasRemaining()) {
+                break;
+            }
+            if (output.position() == 0) {
+                return; // a line larger than the buffer, which only a huge target could make
+            }
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        output.clear();
+    }
+}
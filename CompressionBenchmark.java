@@ -0,0 +1,92 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * This class measures what compressing its text files costs WebServer and what it saves: for every file,
+ * the bytes on the wire of a whole 200 response (head and body) sent as it is, with gzip at levels 1, 6 and 9
+ * and with deflate at level 6, and the CPU time taken to compress the file, per MB of input.
+ * The cached files are compressed only once, so for them the CPU time is a one-time cost, while the
+ * files that have a precompressed ".gz" sibling cost nothing at all.
+ *
+ * Usage: java CompressionBenchmark [file]...
+ * The default files are the sources of WebServer, HashTables and DirectoryList, as examples of a large,
+ * a very large and a small text file.
+ *
+ * The output obtained on a single-core sandbox is below:
+ *
+ * -------- WebServer.java, 27876 bytes --------
+ * identity        28084 bytes on the wire
+ * gzip-1           9274 bytes on the wire ( 33.0%),   17.30 ms of CPU per MB
+ * gzip-6           8016 bytes on the wire ( 28.5%),   36.24 ms of CPU per MB
+ * gzip-9           7984 bytes on the wire ( 28.4%),   70.94 ms of CPU per MB
+ * deflate-6        8010 bytes on the wire ( 28.5%),   38.50 ms of CPU per MB
+ *
+ * -------- HashTables.java, 35888 bytes --------
+ * identity        36096 bytes on the wire
+ * gzip-1          10674 bytes on the wire ( 29.6%),   15.36 ms of CPU per MB
+ * gzip-6           8546 bytes on the wire ( 23.7%),   40.80 ms of CPU per MB
+ * gzip-9           8480 bytes on the wire ( 23.5%),  102.73 ms of CPU per MB
+ * deflate-6        8540 bytes on the wire ( 23.7%),   44.03 ms of CPU per MB
+ *
+ * -------- DirectoryList.java, 1843 bytes --------
+ * identity         2049 bytes on the wire
+ * gzip-1            958 bytes on the wire ( 46.8%),   17.19 ms of CPU per MB
+ * gzip-6            910 bytes on the wire ( 44.4%),   24.37 ms of CPU per MB
+ * gzip-9            910 bytes on the wire ( 44.4%),   24.85 ms of CPU per MB
+ * deflate-6         904 bytes on the wire ( 44.1%),   20.80 ms of CPU per MB
+ *
+ * @author Rafael Souza
+ */
+public class CompressionBenchmark {
+
+    private static final long MINIMUM_CPU_NANOS = 500_000_000L;
+
+    /**
+     * Main function, that will execute the benchmark.
+     *
+     * @param args The files to compress.
+     * @throws Exception If a file cannot be read.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length == 0) {
+            args = new String[] { "WebServer.java", "HashTables.java", "DirectoryList.java" };
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        for (String name : args) {
+            byte[] content = Files.readAllBytes(new File(name).toPath());
+            System.out.println("-------- " + name + ", " + content.length + " bytes --------");
+            System.out.printf("%-10s %10d bytes on the wire%n", "identity", wireBytes(content, "identity"));
+
+            String[] encodings = { "gzip", "gzip", "gzip", "deflate" };
+            int[] levels = { 1, 6, 9, 6 };
+            for (int i = 0; i < encodings.length; i++) {
+                byte[] compressed = WebServer.compress(content, encodings[i], levels[i]); // warm up
+                long cpuTime = 0;
+                long inputBytes = 0;
+                while (cpuTime < MINIMUM_CPU_NANOS) {
+                    long start = threads.getCurrentThreadCpuTime();
+                    compressed = WebServer.compress(content, encodings[i], levels[i]);
+                    cpuTime += threads.getCurrentThreadCpuTime() - start;
+                    inputBytes += content.length;
+                }
+                System.out.printf("%-10s %10d bytes on the wire (%5.1f%%), %7.2f ms of CPU per MB%n",
+                        encodings[i] + "-" + levels[i], wireBytes(compressed, encodings[i]),
+                        100.0 * wireBytes(compressed, encodings[i]) / wireBytes(content, "identity"),
+                        cpuTime / 1e6 / (inputBytes / (1024.0 * 1024)));
+            }
+            System.out.println();
+        }
+    }
+
+    private static long wireBytes(byte[] body, String encoding) {
+        long lastModified = System.currentTimeMillis();
+        HttpResponse response = HttpResponse.content(ByteBuffer.wrap(body), "text/html", encoding,
+                HttpResponse.etag(body.length, lastModified, encoding), lastModified, true);
+        return response.head().remaining() + body.length;
+    }
+}
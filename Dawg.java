@@ -0,0 +1,376 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Dictionary of SpellChecker stored as a minimal acyclic automaton (a DAWG): the words share their prefixes,
+ * as in a trie, and also their suffixes, so a word list takes a fraction of the memory of a HashSet of it.
+ * The automaton is compiled once from the word list, with build(), into a binary file, which is then mapped
+ * into memory with open(): nothing is parsed and no object is created per word, and the pages are shared
+ * with the other processes that map the same file.
+ *
+ * The file holds a header of five big-endian ints (MAGIC, VERSION, the amount of words, the amount of edges
+ * and the first edge of the root) followed by the edges, two ints each. The edges of a state are consecutive,
+ * sorted by letter, and a state is known by the index of its first edge. The first int of an edge holds its
+ * letter, shifted by 8 bits, and the flags FINAL (a word ends after this letter) and LAST (the last edge of its
+ * state); the second one is the state it leads to, or -1 if that state has no edges.
+ *
+ * Usage, to compile a word list: java Dawg [words.txt] [words.dawg]
+ */
+class Dawg implements SpellDictionary {
+
+    static final int MAGIC = 0x44415747; // "DAWG"
+    static final int VERSION = 1;
+    private static final int HEADER_INTS = 5;
+    private static final int FINAL = 1;
+    private static final int LAST = 2;
+
+    private final IntBuffer edges;
+    private final int root;
+    private final int wordCount;
+    private final int maxDistance;
+
+    private Dawg(IntBuffer edges, int root, int wordCount, int maxDistance) {
+        this.edges = edges;
+        this.root = root;
+        this.wordCount = wordCount;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Compiles a word list into a file.
+     * @param args The word list (default "words.txt") and the file to write (default "words.dawg").
+     * @throws IOException If the list cannot be read or the file cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        Path words = Paths.get(args.length > 0 ? args[0] : "words.txt");
+        Path out = Paths.get(args.length > 1 ? args[1] : "words.dawg");
+        long startTime = System.nanoTime();
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String line : Files.readAllLines(words, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                sorted.add(line.toLowerCase());
+            }
+        }
+        try (OutputStream file = Files.newOutputStream(out)) {
+            build(sorted, file);
+        }
+        System.out.printf("Compiled %d words into %s, %d bytes, in %d ms%n", sorted.size(), out, Files.size(out),
+                (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * A state of the automaton being built.
+     */
+    private static class State {
+
+        char[] labels = new char[2];
+        State[] targets = new State[2];
+        int count;
+        boolean isFinal;
+        int id = -1;    // set once the state is registered, when its edges can no longer change
+        int firstEdge;  // set when the automaton is written
+
+        void add(char label, State target) {
+            if (count == labels.length) {
+                labels = Arrays.copyOf(labels, count * 2);
+                targets = Arrays.copyOf(targets, count * 2);
+            }
+            labels[count] = label;
+            targets[count++] = target;
+        }
+
+        /**
+         * @return What two states must share to be merged: their finality and their edges, the states these
+         *    lead to being registered already.
+         */
+        String signature() {
+            StringBuilder signature = new StringBuilder(count * 8 + 1);
+            signature.append(isFinal ? '1' : '0');
+            for (int i = 0; i < count; i++) {
+                signature.append(labels[i]).append(targets[i].id).append(',');
+            }
+            return signature.toString();
+        }
+    }
+
+    /**
+     * Compiles a sorted word list into the binary format, with the incremental algorithm of Daciuk et al.: as
+     * the words come in order, the states of the previous word past the prefix it shares with the next one
+     * can no longer change, so they are merged with an equivalent state already built, or registered as new.
+     * @param words The words, sorted and without repetitions.
+     * @param out Where the automaton is written.
+     * @throws IOException If it cannot be written.
+     * @throws IllegalArgumentException If the words are not sorted.
+     */
+    static void build(Iterable<String> words, OutputStream out) throws IOException {
+
+        State rootState = new State();
+        Map<String, State> register = new HashMap<>();
+        // The path of the previous word: path.get(i) is the state reached after its first i letters
+        List<State> path = new ArrayList<>();
+        path.add(rootState);
+        String previous = "";
+        int wordCount = 0;
+        for (String word : words) {
+            if (word.compareTo(previous) <= 0 && wordCount > 0) {
+                throw new IllegalArgumentException("Words are not sorted: " + previous + ", " + word);
+            }
+            int common = 0;
+            while (common < word.length() && common < previous.length() && word.charAt(common) == previous.charAt(common)) {
+                common++;
+            }
+            minimize(path, common, register);
+            State state = path.get(common);
+            for (int i = common; i < word.length(); i++) {
+                State next = new State();
+                state.add(word.charAt(i), next);
+                path.add(next);
+                state = next;
+            }
+            state.isFinal = true;
+            previous = word;
+            wordCount++;
+        }
+        minimize(path, 0, register);
+
+        // Numbers the edges, breadth-first from the root, so the root comes first
+        List<State> states = new ArrayList<>();
+        IdentityHashMap<State, Boolean> seen = new IdentityHashMap<>();
+        ArrayDeque<State> queue = new ArrayDeque<>();
+        queue.add(rootState);
+        seen.put(rootState, Boolean.TRUE);
+        int edgeCount = 0;
+        while (!queue.isEmpty()) {
+            State state = queue.poll();
+            states.add(state);
+            state.firstEdge = state.count > 0 ? edgeCount : -1;
+            edgeCount += state.count;
+            for (int i = 0; i < state.count; i++) {
+                if (seen.put(state.targets[i], Boolean.TRUE) == null) {
+                    queue.add(state.targets[i]);
+                }
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(wordCount);
+        data.writeInt(edgeCount);
+        data.writeInt(rootState.firstEdge);
+        for (State state : states) {
+            for (int i = 0; i < state.count; i++) {
+                State target = state.targets[i];
+                int flags = (target.isFinal ? FINAL : 0) | (i == state.count - 1 ? LAST : 0);
+                data.writeInt(state.labels[i] << 8 | flags);
+                data.writeInt(target.firstEdge);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Merges or registers the states of the previous word past the given length, deepest first.
+     */
+    private static void minimize(List<State> path, int keep, Map<String, State> register) {
+        for (int i = path.size() - 1; i > keep; i--) {
+            State child = path.get(i);
+            State parent = path.get(i - 1);
+            String signature = child.signature();
+            State equivalent = register.get(signature);
+            if (equivalent != null) {
+                parent.targets[parent.count - 1] = equivalent;
+            } else {
+                child.id = register.size();
+                register.put(signature, child);
+            }
+            path.remove(i);
+        }
+    }
+
+    /**
+     * Maps a compiled automaton into memory.
+     * @param file The file written by build().
+     * @param maxDistance The largest edit distance of the suggestions, 1 or 2.
+     * @return The dictionary.
+     * @throws IOException If the file cannot be read, or is not a compiled automaton.
+     */
+    static Dawg open(Path file, int maxDistance) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer ints = bytes.asIntBuffer();
+            if (ints.remaining() < HEADER_INTS || ints.get(0) != MAGIC || ints.get(1) != VERSION) {
+                throw new IOException(file + " is not a compiled dictionary of version " + VERSION);
+            }
+            int wordCount = ints.get(2);
+            int edgeCount = ints.get(3);
+            if (ints.remaining() < HEADER_INTS + 2L * edgeCount) {
+                throw new IOException(file + " is truncated");
+            }
+            ints.position(HEADER_INTS);
+            return new Dawg(ints.slice(), ints.get(4), wordCount, maxDistance);
+        }
+    }
+
+    /**
+     * Finds the edge of a state with a letter.
+     * @return The index of the edge, or -1 if the state has none with that letter.
+     */
+    private int edge(int state, char letter) {
+        if (state < 0) {
+            return -1;
+        }
+        for (int e = state; ; e++) {
+            int head = edges.get(2 * e);
+            int label = head >>> 8;
+            if (label == letter) {
+                return e;
+            } else if (label > letter || (head & LAST) != 0) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(CharSequence word) {
+        int state = root;
+        int edge = -1;
+        for (int i = 0; i < word.length(); i++) {
+            edge = edge(state, word.charAt(i));
+            if (edge < 0) {
+                return false;
+            }
+            state = edges.get(2 * edge + 1);
+        }
+        return edge >= 0 && (edges.get(2 * edge) & FINAL) != 0;
+    }
+
+    /**
+     * Lists the words that start with a prefix, in order.
+     * @param prefix The prefix, which is listed too if it is a word.
+     * @param limit The largest amount of words listed.
+     * @return The words.
+     */
+    List<String> withPrefix(String prefix, int limit) {
+        List<String> found = new ArrayList<>();
+        int state = root;
+        int edge = -1;
+        for (int i = 0; i < prefix.length(); i++) {
+            edge = edge(state, prefix.charAt(i));
+            if (edge < 0) {
+                return found;
+            }
+            state = edges.get(2 * edge + 1);
+        }
+        if (edge >= 0 && (edges.get(2 * edge) & FINAL) != 0) {
+            found.add(prefix);
+        }
+        StringBuilder word = new StringBuilder(prefix);
+        collect(state, word, found, limit);
+        return found;
+    }
+
+    private void collect(int state, StringBuilder word, List<String> found, int limit) {
+        for (int e = state; state >= 0 && found.size() < limit; e++) {
+            int head = edges.get(2 * e);
+            word.append((char) (head >>> 8));
+            if ((head & FINAL) != 0) {
+                found.add(word.toString());
+            }
+            collect(edges.get(2 * e + 1), word, found, limit);
+            word.setLength(word.length() - 1);
+            if ((head & LAST) != 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the words within the distance given to open() by walking the automaton with the rows of the
+     * optimal string alignment distance of SpellIndex, one row per letter, so a prefix is left as soon as
+     * every word that starts with it is too far. Only the cells of a row within maxDistance of its diagonal
+     * can be small enough to matter, so the others are left at maxDistance + 1.
+     */
+    @Override
+    public TreeSet<String> suggestions(String word) {
+        TreeSet<String> found = new TreeSet<>();
+        int columns = word.length() + 1;
+        int[][] rows = new int[word.length() + maxDistance + 2][columns];
+        for (int j = 0; j < columns; j++) {
+            rows[0][j] = j <= maxDistance ? j : maxDistance + 1;
+        }
+        search(root, 1, word.toCharArray(), new char[rows.length], rows, found);
+        return found;
+    }
+
+    private void search(int state, int depth, char[] word, char[] letters, int[][] rows, TreeSet<String> found) {
+        if (state < 0 || depth >= rows.length) {
+            return;
+        }
+        int m = word.length;
+        int tooFar = maxDistance + 1;
+        int low = Math.max(1, depth - maxDistance);
+        int high = Math.min(m, depth + maxDistance);
+        int[] row = rows[depth];
+        int[] previous = rows[depth - 1];
+        int[] previous2 = depth > 1 ? rows[depth - 2] : null;
+        row[low - 1] = low == 1 ? Math.min(depth, tooFar) : tooFar;
+        if (high < m) {
+            row[high + 1] = tooFar;
+        }
+        for (int e = state; ; e++) {
+            int head = edges.get(2 * e);
+            char letter = (char) (head >>> 8);
+            letters[depth - 1] = letter;
+            char previousLetter = depth > 1 ? letters[depth - 2] : 0;
+            int rowMin = row[low - 1];
+            for (int j = low; j <= high; j++) {
+                int cost = word[j - 1] == letter ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, row[j - 1] + 1), previous[j - 1] + cost);
+                if (previous2 != null && j > 1 && letter == word[j - 2] && previousLetter == word[j - 1]) {
+                    value = Math.min(value, previous2[j - 2] + 1);
+                }
+                row[j] = Math.min(value, tooFar);
+                rowMin = Math.min(rowMin, value);
+            }
+            if ((head & FINAL) != 0 && low <= m && m <= high && row[m] > 0 && row[m] <= maxDistance) {
+                found.add(new String(letters, 0, depth));
+            }
+            if (rowMin <= maxDistance) {
+                search(edges.get(2 * e + 1), depth + 1, word, letters, rows, found);
+            }
+            if ((head & LAST) != 0) {
+                return;
+            }
+        }
+    }
+
+    int wordCount() {
+        return wordCount;
+    }
+
+    /**
+     * @return The size of the automaton in bytes, which is the size of the file.
+     */
+    long bytes() {
+        return 4L * (HEADER_INTS + edges.capacity());
+    }
+}
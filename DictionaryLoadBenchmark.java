@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.TreeSet;
+
+/**
+ * This class compares the two ways SpellChecker gets its dictionary at startup: reading words.txt into a
+ * HashSet and building a SpellIndex of it, or mapping the Dawg compiled from it. For each one it reports the
+ * time until the first word can be checked, the heap kept after a full collection, the growth of the resident
+ * memory of the process (VmRSS, on Linux), and the time to check a word and to correct a misspelled one.
+ * The dictionary is words.txt if it is found, or else 100,000 random words with the letter frequencies of
+ * English, 60% of them made of another one and a common suffix, so that some suffixes are shared.
+ *
+ * The Dawg is measured first, so the heap the HashSet grows is not counted for it. Its resident memory is
+ * measured after a lookup of every word, which reads every page of the file. The output obtained with the
+ * random dictionary, with -Xms1g -Xmx1g, is below:
+ *
+ * Dictionary: 100000 words (random), compiled in 1006 ms into 1337620 bytes
+ * Dawg: loaded in 4 ms, heap +0 MB, resident +4 MB, contains 0.52 us, corrections 902.4 us
+ * HashSet and SpellIndex: loaded in 2572 ms, heap +78 MB, resident +272 MB, contains 0.65 us, corrections 91.5 us
+ *
+ * The Dawg starts at once and costs the size of its file, shared by every process that maps it, plus the
+ * pages of the JIT and of the lookups; the SpellIndex at distance 2 and its WordTable keep 78 MB of heap, and
+ * building the index touches over three times as much, which the process keeps. A lookup walks one state
+ * per letter through a file small enough to stay in the CPU caches, so it is not slower than the WordTable.
+ * The corrections are another matter: the Dawg explores every prefix within distance 2 of the misspelled
+ * word, some 5,000 states and 24,000 edges for these random words, where the SpellIndex goes straight to the
+ * few candidates, so a long check with many misspelled words is faster with the index, and a short one with
+ * the Dawg.
+ *
+ * @author Rafael Souza
+ */
+public class DictionaryLoadBenchmark {
+
+    private static final int WORDS = 100_000;
+    private static final int MISSPELLED = 2_000;
+    private static final int MAX_DISTANCE = 2;
+
+    // The letters of English, repeated by their frequency in percent, rounded up
+    private static final String LETTERS = "aaaaaaaabbcccddddeeeeeeeeeeeeeffgghhhhhhiiiiiiijkllllmmmnnnnnnnooooooooppqrrrrrr"
+            + "sssssstttttttttuuuvwwxyyz";
+    private static final String[] SUFFIXES = {"s", "ed", "ing", "er", "ers", "ly", "ness", "ion", "ions", "able"};
+
+    /**
+     * Main function, that will execute the benchmark comparison.
+     *
+     * @param args Command line arguments, not used in the method.
+     * @throws IOException If the temporary files cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+
+        Random rand = new Random(42);
+        File wordList = new File("./words.txt");
+        String source = "words.txt";
+        if (!wordList.isFile()) {
+            source = "random";
+            wordList = randomWordList(rand);
+        }
+
+        Path dawgFile = Files.createTempFile("words", ".dawg");
+        dawgFile.toFile().deleteOnExit();
+        List<String> words = compile(wordList, dawgFile, source);
+        List<String> misspelled = new ArrayList<>();
+        while (misspelled.size() < MISSPELLED) {
+            StringBuilder word = new StringBuilder(words.get(rand.nextInt(words.size())));
+            word.setCharAt(rand.nextInt(word.length()), LETTERS.charAt(rand.nextInt(LETTERS.length())));
+            if (rand.nextBoolean()) {
+                word.insert(rand.nextInt(word.length() + 1), LETTERS.charAt(rand.nextInt(LETTERS.length())));
+            }
+            if (!words.contains(word.toString())) {
+                misspelled.add(word.toString());
+            }
+        }
+
+        long heap = usedHeap();
+        long resident = resident();
+        long startTime = System.nanoTime();
+        SpellDictionary dawg = Dawg.open(dawgFile, MAX_DISTANCE);
+        long loadTime = System.nanoTime() - startTime;
+        heap = usedHeap() - heap;
+        report("Dawg", dawg, loadTime, heap, resident, words, misspelled);
+        dawg = null;
+
+        heap = usedHeap();
+        resident = resident();
+        startTime = System.nanoTime();
+        SpellDictionary index = loadHashSet(wordList);
+        loadTime = System.nanoTime() - startTime;
+        heap = usedHeap() - heap;
+        report("HashSet and SpellIndex", index, loadTime, heap, resident, words, misspelled);
+    }
+
+    /**
+     * Writes random words to a temporary file.
+     */
+    private static File randomWordList(Random rand) throws IOException {
+        File wordList = File.createTempFile("words", ".txt");
+        wordList.deleteOnExit();
+        HashSet<String> words = new HashSet<>();
+        List<String> stems = new ArrayList<>();
+        while (words.size() < WORDS) {
+            if (!stems.isEmpty() && rand.nextInt(10) < 6) {
+                words.add(stems.get(rand.nextInt(stems.size())) + SUFFIXES[rand.nextInt(SUFFIXES.length)]);
+            } else {
+                String stem = randomWord(rand, 3 + rand.nextInt(6) + rand.nextInt(6));
+                stems.add(stem);
+                words.add(stem);
+            }
+        }
+        Files.write(wordList.toPath(), words, StandardCharsets.UTF_8);
+        return wordList;
+    }
+
+    /**
+     * Compiles the word list the way Dawg.main() does.
+     * @return The words, sorted.
+     */
+    private static List<String> compile(File wordList, Path dawgFile, String source) throws IOException {
+        long startTime = System.nanoTime();
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String line : Files.readAllLines(wordList.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                sorted.add(line.toLowerCase());
+            }
+        }
+        try (OutputStream out = Files.newOutputStream(dawgFile)) {
+            Dawg.build(sorted, out);
+        }
+        System.out.printf("Dictionary: %d words (%s), compiled in %d ms into %d bytes%n", sorted.size(), source,
+                (System.nanoTime() - startTime) / 1_000_000, Files.size(dawgFile));
+        return new ArrayList<>(sorted);
+    }
+
+    /**
+     * Loads the dictionary the way SpellChecker does without a compiled one.
+     */
+    private static SpellDictionary loadHashSet(File wordList) throws FileNotFoundException {
+        HashSet<String> hSet = new HashSet<>();
+        try (Scanner filein = new Scanner(wordList)) {
+            while (filein.hasNextLine()) {
+                hSet.add(filein.nextLine().toLowerCase());
+            }
+        }
+        return new SpellIndex(hSet, MAX_DISTANCE);
+    }
+
+    /**
+     * @param heap The heap the dictionary keeps.
+     * @param resident The resident memory before the dictionary was loaded.
+     */
+    private static void report(String name, SpellDictionary dictionary, long loadTime, long heap, long resident,
+            List<String> words, List<String> misspelled) {
+
+        // The first pass reads every page of a mapped dictionary, and warms up the JIT
+        long found = 0;
+        for (int round = 0; round < 2; round++) {
+            for (String word : words) {
+                found += dictionary.contains(word) ? 1 : 0;
+            }
+        }
+        long startTime = System.nanoTime();
+        for (String word : words) {
+            found += dictionary.contains(word) ? 1 : 0;
+        }
+        long containsTime = System.nanoTime() - startTime;
+        for (String word : misspelled) {
+            found += SpellChecker.corrections(word, dictionary).size();
+        }
+        startTime = System.nanoTime();
+        for (String word : misspelled) {
+            found += SpellChecker.corrections(word, dictionary).size();
+        }
+        long correctionsTime = System.nanoTime() - startTime;
+        if (found == 0) {
+            System.out.println("Nothing found");
+        }
+        System.out.printf("%s: loaded in %d ms, heap +%d MB, resident +%d MB, contains %.2f us, corrections %.1f us%n",
+                name, loadTime / 1_000_000, heap >> 20, (resident() - resident) >> 20,
+                containsTime / 1e3 / words.size(), correctionsTime / 1e3 / misspelled.size());
+    }
+
+    /**
+     * @return The heap in use after collections, repeated until it stops falling.
+     */
+    private static long usedHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * @return The resident memory of the process in bytes, or 0 if it is not known.
+     */
+    private static long resident() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return 0;
+    }
+
+    private static String randomWord(Random rand, int length) {
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            word.append(LETTERS.charAt(rand.nextInt(LETTERS.length())));
+        }
+        return word.toString();
+    }
+}
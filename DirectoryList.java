@@ -1,5 +1,6 @@
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
@@ -29,9 +30,13 @@ public class DirectoryList {
 
    } // end main()
 
+   /**
+    * Lists the files in a directory, and then in each of its subdirectories.
+    * @param directory The directory to list.
+    */
    static void listFiles(File directory) {
 
-      String[] files;        // Array of file names in the directory.
+      ArrayList<File> files;  // The files in the directory, as returned by entries().
       ArrayList<File> directories = new ArrayList<>();
 
       if (!directory.isDirectory()) {
@@ -41,14 +46,13 @@ public class DirectoryList {
             System.out.println("That file is not a directory.");
       }
       else {
-         files = directory.list();
+         files = entries(directory);
          System.out.println("Files in directory \"" + directory + "\":");
-         for (int i = 0; i < files.length; i++) {
-            File file = new File(directory, files[i]);
+         for (File file : files) {
             if (file.isDirectory()) {
                directories.add(file);
             }
-            System.out.println("   " + files[i]);
+            System.out.println("   " + file.getName());
          }
          for (File f : directories) {
             listFiles(f);
@@ -56,4 +60,34 @@ public class DirectoryList {
       }
    }
 
+   /**
+    * Gets the files in a directory, without going into its subdirectories:
+    * the subdirectories first, then the other files, each group sorted by
+    * name.  Also used by WebServer to build its directory listings.
+    * @param directory The directory.
+    * @return The files, or an empty list if the directory cannot be read.
+    */
+   static ArrayList<File> entries(File directory) {
+
+      ArrayList<File> entries = new ArrayList<>();
+      String[] names = directory.list();
+      if (names == null) {
+         return entries;
+      }
+      Arrays.sort(names);
+      for (String name : names) {
+         File file = new File(directory, name);
+         if (file.isDirectory()) {
+            entries.add(file);
+         }
+      }
+      for (String name : names) {
+         File file = new File(directory, name);
+         if (!file.isDirectory()) {
+            entries.add(file);
+         }
+      }
+      return entries;
+   }
+
 } // end class DirectoryList
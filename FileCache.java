@@ -0,0 +1,483 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class that holds the hot set of small files served by WebServer in memory, with their responses already
+ * built, so a hit needs neither a file system lookup nor a read. Files are cached when first requested, if
+ * they are not larger than the maximum file size; once the cached bytes exceed the maximum, the least recently
+ * used files are evicted.
+ *
+ * Compressible files also get a gzip or deflate variant, built the first time a client accepts that encoding:
+ * a precompressed ".gz" sibling is used for gzip when it is at least as recent as the file, otherwise the file
+ * is compressed once and the result is kept with the entry. Files smaller than webserver.compressMinBytes,
+ * or that do not get smaller, are always sent as they are.
+ *
+ * Directories are cached too, under their own path: the response of a directory is its index.html or, if it
+ * has none, the listing of its files generated by WebServer, so a large directory is only listed again after
+ * it changes.
+ *
+ * Entries are invalidated by a WatchService on the directories of the cached files, so a file that is changed,
+ * deleted or replaced (or whose ".gz" sibling is) is reloaded on its next request, and so is the directory that
+ * holds it. A directory is only watched while the cache holds entries that depend on it: its watch is
+ * cancelled when the last one is dropped. Where the file system cannot be watched, the modification time and
+ * the length of the file are checked on every hit instead, changes to the ".gz" siblings alone are not
+ * noticed, and directories are not cached, since no modification time tells when their index or their
+ * listing changes.
+ * All the methods are synchronized, so a cache can be shared by every thread of both engines.
+ */
+class FileCache {
+
+    // The encodings a file can be cached in; index 0 is the file as it is
+    private static final String[] ENCODINGS = { null, "gzip", "deflate" };
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, WatchedDirectory> watchedDirectories = new HashMap<>();
+    private final WatchService watcher;
+    private long bytes;
+
+    // Incremented by every invalidation, so a file read while it was being changed is not cached
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * A cached file or directory: for each encoding built so far, its responses without and with keep-alive,
+     * which share the same body.
+     */
+    private static class Entry {
+
+        final byte[] content;
+        final String mimeType;
+        final boolean compressible;
+        final long lastModified;
+        final File source;  // the file whose ".gz" sibling can be sent, null for a listing
+        final boolean directory;
+        final HttpResponse[][] responses = new HttpResponse[ENCODINGS.length][];
+        long bytes;
+        WatchedDirectory watched;  // set while the entry is cached, null if nothing is watched
+
+        Entry(byte[] content, String mimeType, boolean compressible, long lastModified, File source,
+                boolean directory) {
+            this.content = content;
+            this.mimeType = mimeType;
+            this.compressible = compressible;
+            this.lastModified = lastModified;
+            this.source = source;
+            this.directory = directory;
+            String encoding = compressible ? "identity" : null;
+            responses[0] = responses(ByteBuffer.wrap(content), mimeType, encoding,
+                    HttpResponse.etag(content.length, lastModified, encoding), lastModified);
+            bytes = content.length;
+        }
+
+        int index(String encoding) {
+            if (compressible) {
+                for (int i = 1; i < ENCODINGS.length; i++) {
+                    if (ENCODINGS[i].equals(encoding)) {
+                        return i;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        static HttpResponse[] responses(ByteBuffer body, String mimeType, String contentEncoding, String etag,
+                long lastModified) {
+            return new HttpResponse[] { HttpResponse.content(body, mimeType, contentEncoding, etag, lastModified, false),
+                    HttpResponse.content(body, mimeType, contentEncoding, etag, lastModified, true) };
+        }
+    }
+
+    /**
+     * A watched directory, with the amount of cached entries and of loads in progress that depend on it.
+     */
+    private static class WatchedDirectory {
+
+        final Path path;
+        final WatchKey key;
+        int users;
+
+        WatchedDirectory(Path path, WatchKey key) {
+            this.path = path;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Creates an empty cache, and the thread that watches the directories of its files.
+     * @param maxBytes The maximum amount of file bytes held by the cache.
+     * @param maxFileBytes The size of the largest file that is cached.
+     */
+    FileCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("File changes cannot be watched, checking modification times instead: " + e);
+            service = null;
+        }
+        watcher = service;
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "file-cache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Gets the cached response for a file or a directory.
+     * @param path The absolute, normalized path of the file or directory.
+     * @param encoding The encoding accepted by the client, "gzip" or "deflate", or null for none.
+     * @param keepAlive Whether the connection stays open after the response.
+     * @param directory Whether a directory is requested, its target ending with a slash. A directory
+     *    requested as a file is not answered from the cache, since it must be redirected.
+     * @return The response, or null if the file, or its variant for that encoding, is not cached.
+     */
+    synchronized HttpResponse get(Path path, String encoding, boolean keepAlive, boolean directory) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.directory != directory) {
+            entry = null;
+        } else if (entry != null && watcher == null) {
+            File file = path.toFile();
+            if (file.lastModified() != entry.lastModified || file.length() != entry.content.length) {
+                remove(path);
+                invalidations++;
+                entry = null;
+            }
+        }
+        HttpResponse[] responses = entry == null ? null : entry.responses[entry.index(encoding)];
+        if (responses == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return responses[keepAlive ? 1 : 0];
+    }
+
+    /**
+     * Reads a file into the cache, if it is small enough, or builds the missing variant of a cached file,
+     * and gets its response.
+     * @param file The file, which must exist and be readable.
+     * @param path The absolute, normalized path of the file.
+     * @param mimeType The content type of the file.
+     * @param encoding The encoding accepted by the client, "gzip" or "deflate", or null for none.
+     * @param keepAlive Whether the connection stays open after the response.
+     * @return The response, or null if the file is too large to be cached.
+     * @throws IOException If the file cannot be read.
+     */
+    HttpResponse load(File file, Path path, String mimeType, String encoding, boolean keepAlive) throws IOException {
+        return load(file, path, path.getParent(), false, mimeType, encoding, keepAlive);
+    }
+
+    /**
+     * Reads the response of a directory into the cache, or builds its missing variant, and gets it: the
+     * index.html of the directory if it has one, or else its listing, see WebServer.renderListing().
+     * @param directory The directory, which must exist and be readable.
+     * @param path The absolute, normalized path of the directory.
+     * @param encoding The encoding accepted by the client, "gzip" or "deflate", or null for none.
+     * @param keepAlive Whether the connection stays open after the response.
+     * @return The response, or null if it is too large to be cached or the directory cannot be watched.
+     * @throws IOException If the index cannot be read.
+     */
+    HttpResponse loadDirectory(File directory, Path path, String encoding, boolean keepAlive) throws IOException {
+        if (watcher == null) {
+            return null;
+        }
+        return load(directory, path, path, true, "text/html", encoding, keepAlive);
+    }
+
+    /**
+     * @param watched The directory whose changes invalidate the entry: the one that holds the file, or the
+     *    directory itself, which holds its index and the files of its listing.
+     */
+    private HttpResponse load(File file, Path path, Path watched, boolean directory, String mimeType, String encoding,
+            boolean keepAlive) throws IOException {
+
+        long startGeneration;
+        Entry entry;
+        HttpResponse[] responses = null;
+        WatchedDirectory watch = null;
+        synchronized (this) {
+            if (!directory && file.length() > maxFileBytes) {
+                return null;
+            }
+            // Watched before it is read, so a change made while reading it is not missed
+            if (watcher != null && (watch = watchDirectory(watched)) == null) {
+                return null;
+            }
+            startGeneration = generation;
+            entry = entries.get(path);
+            if (entry != null && entry.directory == directory) {
+                responses = entry.responses[entry.index(encoding)];
+            } else {
+                entry = null;
+            }
+        }
+
+        try {
+            if (entry == null) {
+                File source = file;
+                long lastModified;
+                byte[] content;
+                if (!directory) {
+                    lastModified = file.lastModified();
+                    content = Files.readAllBytes(path);
+                } else if ((source = WebServer.indexFile(file)) != null) {
+                    lastModified = source.lastModified();
+                    content = Files.readAllBytes(source.toPath());
+                } else {
+                    // A listing is new whenever it is rendered, so its entity tag changes with it
+                    lastModified = System.currentTimeMillis();
+                    content = WebServer.renderListing(file);
+                }
+                if (content.length > maxFileBytes) {
+                    return null;
+                }
+                boolean compressible = WebServer.isCompressible(mimeType)
+                        && content.length >= WebServer.COMPRESS_MIN_BYTES;
+                entry = new Entry(content, mimeType, compressible, lastModified, source, directory);
+                responses = entry.responses[entry.index(encoding)];
+            }
+            int index = entry.index(encoding);
+            if (responses == null) {
+                responses = buildVariant(entry, index);
+            }
+
+            synchronized (this) {
+                if (generation == startGeneration) {
+                    Entry current = entries.get(path);
+                    if (current != entry) {
+                        if (current != null) {
+                            bytes -= current.bytes;
+                            release(current.watched);
+                        }
+                        entries.put(path, entry);
+                        bytes += entry.bytes;
+                        entry.watched = watch;
+                        if (watch != null) {
+                            watch.users++;
+                        }
+                    }
+                    if (entry.responses[index] == null) {
+                        entry.responses[index] = responses;
+                        if (responses != entry.responses[0]) {
+                            long variantBytes = responses[0].body().remaining();
+                            entry.bytes += variantBytes;
+                            bytes += variantBytes;
+                        }
+                    }
+                    evict();
+                }
+            }
+            return responses[keepAlive ? 1 : 0];
+        } finally {
+            // The load no longer needs the directory watched, only the entry it cached, if any
+            release(watch);
+        }
+    }
+
+    /**
+     * Builds the responses of a file in a compressed encoding, from its precompressed sibling if it has one.
+     * @return The responses, or the ones of the file as it is if compressing it does not make it smaller.
+     */
+    private static HttpResponse[] buildVariant(Entry entry, int index) throws IOException {
+        String encoding = ENCODINGS[index];
+        byte[] encoded = null;
+        String etag = HttpResponse.etag(entry.content.length, entry.lastModified, encoding);
+        long lastModified = entry.lastModified;
+        if (encoding.equals("gzip") && entry.source != null) {
+            File precompressed = WebServer.precompressed(entry.source);
+            if (precompressed != null) {
+                lastModified = precompressed.lastModified();
+                encoded = Files.readAllBytes(precompressed.toPath());
+                // Tagged after the copy, which can change on its own
+                etag = HttpResponse.etag(encoded.length, lastModified, encoding);
+            }
+        }
+        if (encoded == null) {
+            encoded = WebServer.compress(entry.content, encoding);
+        }
+        if (encoded.length >= entry.content.length) {
+            return entry.responses[0];
+        }
+        return Entry.responses(ByteBuffer.wrap(encoded), entry.mimeType, encoding, etag, lastModified);
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            bytes -= entry.bytes;
+            release(entry.watched);
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(Path path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            bytes -= entry.bytes;
+            release(entry.watched);
+        }
+    }
+
+    /**
+     * Watches a directory, if it is not yet, for one more user, which must release it.
+     * @return The watched directory, or null if it cannot be watched, so its files must not be cached.
+     */
+    private WatchedDirectory watchDirectory(Path directory) {
+        WatchedDirectory watched = watchedDirectories.get(directory);
+        if (watched == null) {
+            try {
+                watched = new WatchedDirectory(directory, directory.register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException e) {
+                System.out.println("Cannot watch " + directory + ": " + e);
+                return null;
+            }
+            watchedDirectories.put(directory, watched);
+        }
+        watched.users++;
+        return watched;
+    }
+
+    /**
+     * Releases a watched directory, and stops watching it if nothing depends on it any more.
+     * @param watched The watched directory, or null if nothing is watched.
+     */
+    private synchronized void release(WatchedDirectory watched) {
+        if (watched != null && --watched.users == 0) {
+            watched.key.cancel();
+            watchedDirectories.remove(watched.path, watched);
+        }
+    }
+
+    /**
+     * Body of the watcher thread: drops the entries of the files reported as changed, and of the directories
+     * that hold them, whose index or listing may have changed with them.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            synchronized (this) {
+                generation++;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so any file of the directory may have changed
+                        invalidateDirectory(directory);
+                    } else {
+                        Path path = directory.resolve((Path) event.context());
+                        String name = path.getFileName().toString();
+                        if (name.endsWith(".gz")) {
+                            // The precompressed sibling of a file changed, so its gzip variant is stale
+                            invalidate(path.resolveSibling(name.substring(0, name.length() - 3)));
+                        }
+                        invalidate(path);
+                        invalidate(directory);
+                    }
+                }
+                if (!key.reset()) {
+                    // The directory is gone or no longer watched, and no more of its changes will be reported
+                    WatchedDirectory watched = watchedDirectories.get(directory);
+                    if (watched != null && watched.key == key) {
+                        watchedDirectories.remove(directory);
+                    }
+                    invalidateDirectory(directory);
+                }
+            }
+        }
+    }
+
+    private void invalidate(Path path) {
+        if (entries.containsKey(path)) {
+            remove(path);
+            invalidations++;
+        }
+    }
+
+    /**
+     * Drops the entry of a directory and the entries of all its files.
+     */
+    private void invalidateDirectory(Path directory) {
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> cached = iterator.next();
+            if (directory.equals(cached.getKey()) || directory.equals(cached.getKey().getParent())) {
+                bytes -= cached.getValue().bytes;
+                release(cached.getValue().watched);
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long hitCount() {
+        return hits;
+    }
+
+    synchronized long missCount() {
+        return misses;
+    }
+
+    synchronized long evictionCount() {
+        return evictions;
+    }
+
+    synchronized long invalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * @return The fraction of the lookups that were hits, or 0 if there were none.
+     */
+    synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return A one-line summary of the counters, for the server log.
+     */
+    synchronized String statistics() {
+        return String.format("File cache: %d files, %d bytes, %d hits, %d misses (hit rate %.1f%%), %d evictions, %d invalidations"
+                + ", %d watched directories", entries.size(), bytes, hits, misses, hitRate() * 100, evictions, invalidations,
+                watchedDirectories.size());
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class compares the three ways WebServer has used to send a file to a socket, over loopback:
+ * the original byte-by-byte copy through buffered streams, the chunked copy through a direct buffer,
+ * and FileChannel.transferTo(). A reader thread drains the socket on the other end.
+ * Every file is sent repeatedly until at least 256 MB have been sent, after one warm-up pass.
+ *
+ * Usage: java FileTransferBenchmark [size in bytes]...
+ * The default sizes are 1 KB, 1 MB and 1 GB. The files are created, sparse, in the temporary directory,
+ * so they are served from memory and the disk speed is not part of the results.
+ *
+ * The output obtained on a single-core sandbox is below:
+ *
+ * -------- File size 1024 bytes --------
+ * Byte-by-byte streams: 16.8 MB/s
+ * Chunked direct buffer: 131.4 MB/s
+ * transferTo: 152.9 MB/s
+ *
+ * -------- File size 1048576 bytes --------
+ * Byte-by-byte streams: 18.1 MB/s
+ * Chunked direct buffer: 1729.5 MB/s
+ * transferTo: 3629.0 MB/s
+ *
+ * -------- File size 1073741824 bytes --------
+ * Byte-by-byte streams: 18.2 MB/s
+ * Chunked direct buffer: 2126.0 MB/s
+ * transferTo: 2610.1 MB/s
+ *
+ * @author Rafael Souza
+ */
+public class FileTransferBenchmark {
+
+    private static final long MINIMUM_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Main function, that will execute the benchmark comparison.
+     *
+     * @param args The file sizes to test, in bytes.
+     * @throws Exception If the files or the sockets fail.
+     */
+    public static void main(String[] args) throws Exception {
+
+        long[] sizes = { 1024, 1024 * 1024, 1024L * 1024 * 1024 };
+        if (args.length > 0) {
+            sizes = new long[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Long.parseLong(args[i]);
+            }
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+
+            for (long size : sizes) {
+                File file = File.createTempFile("transfer", ".bin");
+                file.deleteOnExit();
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(size);
+                }
+
+                System.out.println("-------- File size " + size + " bytes --------");
+                int repeats = (int) Math.max(1, MINIMUM_BYTES / size);
+                // The byte loop is slow enough that a smaller sample of it is representative
+                System.out.printf("Byte-by-byte streams: %.1f MB/s%n", measure(server, file, 0, Math.max(1, repeats / 16)));
+                System.out.printf("Chunked direct buffer: %.1f MB/s%n", measure(server, file, 1, repeats));
+                System.out.printf("transferTo: %.1f MB/s%n", measure(server, file, 2, repeats));
+                System.out.println();
+                file.delete();
+            }
+        }
+    }
+
+    private static double measure(ServerSocketChannel server, File file, int strategy, int repeats) throws Exception {
+
+        long size = file.length();
+        if (size <= 64L * 1024 * 1024) {
+            send(server, file, strategy, 1); // warm up
+        }
+        long startTime = System.nanoTime();
+        send(server, file, strategy, repeats);
+        long runTime = System.nanoTime() - startTime;
+        return (double) size * repeats / (1024 * 1024) / (runTime / 1e9);
+    }
+
+    private static void send(ServerSocketChannel server, File file, int strategy, int repeats) throws Exception {
+
+        long total = file.length() * repeats;
+        Thread reader = new Thread(() -> {
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+                ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+                long received = 0;
+                while (received < total) {
+                    sink.clear();
+                    int read = client.read(sink);
+                    if (read < 0) {
+                        break;
+                    }
+                    received += read;
+                }
+            } catch (IOException e) {
+                System.out.println("Reader failed: " + e);
+            }
+        });
+        reader.start();
+
+        try (SocketChannel socket = server.accept()) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(WebServer.CHUNK_SIZE);
+            for (int r = 0; r < repeats; r++) {
+                if (strategy == 0) {
+                    sendBytes(file, Channels.newOutputStream(socket));
+                } else {
+                    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        long position = 0;
+                        while (position < in.size()) {
+                            if (strategy == 2) {
+                                position += in.transferTo(position, in.size() - position, socket);
+                            } else {
+                                chunk.clear();
+                                position += in.read(chunk, position);
+                                chunk.flip();
+                                while (chunk.hasRemaining()) {
+                                    socket.write(chunk);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        reader.join();
+    }
+
+    /**
+     * The original WebServer.sendFile(): one read() and one write() call per byte.
+     */
+    private static void sendBytes(File file, OutputStream socketOut) throws IOException {
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        OutputStream out = new BufferedOutputStream(socketOut);
+
+        while (true) {
+            int x = in.read();
+            if (x < 0)
+                break;
+            out.write(x);
+        }
+
+        out.flush();
+        in.close();
+    }
+}
@@ -0,0 +1,315 @@
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Class that implements HashTables for any key and value types, the generic counterpart of HashTables.
+ * Implemented from scratch, without any Java Collection.
+ *
+ * Every node caches the hash of its key, so a chain is walked comparing hashes and equals() is only
+ * called on a key with the same hash. String keys are hashed with the seeded hash of HashTables.
+ *
+ * In compact mode, String keys made only of ASCII characters are not kept as String objects: their
+ * characters are packed, one byte each, in a slab shared by the whole table, and the node keeps only
+ * their position. This saves the String and its array on every entry, at the cost of creating a String
+ * again when the keys are traversed. The slab is compacted once half of it belongs to removed keys.
+ *
+ * @author Rafael Souza
+ */
+public class GenericHashTables<K, V> {
+
+    private static final int SIZE = 1024;
+
+    private final int seed = HashTables.newSeed();
+    private final boolean compactKeys;
+    private Node<K, V>[] table;
+    private int count;
+
+    private byte[] slab;
+    private int slabUsed;
+    private int slabGarbage;
+
+    /**
+     * Creates an empty table that keeps every key as an object.
+     */
+    public GenericHashTables() {
+        this(0, false);
+    }
+
+    /**
+     * Creates an empty table.
+     * @param expectedSize The amount of mappings the table is expected to hold without growing.
+     * @param compactKeys Whether ASCII String keys are packed in a shared slab instead of kept as objects.
+     */
+    public GenericHashTables(int expectedSize, boolean compactKeys) {
+        int length = SIZE;
+        while (length < (long) expectedSize * 4 / 3 + 1 && length < (1 << 30)) {
+            length <<= 1;
+        }
+        table = newTable(length);
+        this.compactKeys = compactKeys;
+        this.slab = compactKeys ? new byte[1024] : null;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K, V> Node<K, V>[] newTable(int length) {
+        return (Node<K, V>[]) new Node[length];
+    }
+
+    /**
+     * Gets the hash of a key: the seeded hash of HashTables for Strings, a mix of hashCode() otherwise.
+     */
+    private int hash(Object key) {
+        if (key instanceof String) {
+            return HashTables.hash((String) key, seed);
+        }
+        int h = (key.hashCode() ^ seed) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int getIndexFromHash(int hash) {
+        return hash & (table.length - 1);
+    }
+
+    /**
+     * Returns whether the key of a node is equal to a given key, comparing the packed bytes of compact keys.
+     */
+    private boolean keyEquals(Node<K, V> node, Object key) {
+        if (node.key != null) {
+            return node.key.equals(key);
+        }
+        if (!(key instanceof String)) {
+            return false;
+        }
+        String str = (String) key;
+        if (str.length() != node.keyLength) {
+            return false;
+        }
+        for (int i = 0; i < node.keyLength; i++) {
+            if (slab[node.keyOffset + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Node<K, V> getNode(Object key, int hash) {
+        for (Node<K, V> node = table[getIndexFromHash(hash)]; node != null; node = node.next) {
+            if (node.hash == hash && keyEquals(node, key)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the mapping of a value associated with a key.
+     * @param key The key to search for.
+     * @return The value associated with that key, or null if not found. A null key is never found.
+     */
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Node<K, V> node = getNode(key, hash(key));
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Returns whether or not the given key is in the table.
+     * @param key The key to look for.
+     * @return True if the key is there, false if not or if the key is null.
+     */
+    public boolean containsKey(Object key) {
+        return key != null && getNode(key, hash(key)) != null;
+    }
+
+    /**
+     * Add to the table a new mapping of key/value, replacing the previous value of the key if there was one.
+     * @param key The key to associate the value with.
+     * @param value The value to associate the key with.
+     * @return The previous value of the key, or null if there was none.
+     * @throws IllegalArgumentException If the key is null.
+     */
+    public V put(K key, V value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null.");
+        }
+        int hash = hash(key);
+        Node<K, V> node = getNode(key, hash);
+        if (node != null) {
+            V previous = node.value;
+            node.value = value;
+            return previous;
+        }
+
+        node = new Node<>(hash, value);
+        if (compactKeys && isAscii(key)) {
+            packKey(node, (String) key);
+        } else {
+            node.key = key;
+        }
+        int index = getIndexFromHash(hash);
+        node.next = table[index];
+        table[index] = node;
+        if (++count > table.length * 3 / 4) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping associated with that key.
+     * @param key The key to remove.
+     * @return The value removed, or null if not found. A null key is never found.
+     */
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        int hash = hash(key);
+        int index = getIndexFromHash(hash);
+        Node<K, V> previous = null;
+        for (Node<K, V> runner = table[index]; runner != null; runner = runner.next) {
+            if (runner.hash == hash && keyEquals(runner, key)) {
+                if (previous == null) {
+                    table[index] = runner.next;
+                } else {
+                    previous.next = runner.next;
+                }
+                count--;
+                if (runner.key == null) {
+                    slabGarbage += runner.keyLength;
+                    if (slabGarbage > slabUsed / 2) {
+                        compactSlab();
+                    }
+                }
+                return runner.value;
+            }
+            previous = runner;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the amount of key/value mappings in the table.
+     * @return the actual size of the table.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Performs the given action for every key/value mapping of the table, in no particular order.
+     * Keys packed in the slab are turned back into Strings.
+     * @param action The action to perform.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Node<K, V> head : table) {
+            for (Node<K, V> node = head; node != null; node = node.next) {
+                action.accept(keyOf(node), node.value);
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of bytes of the slab holding packed keys, including removed ones not yet compacted.
+     * @return The bytes used in the slab, or 0 if the table is not in compact mode.
+     */
+    public int slabSize() {
+        return slabUsed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyOf(Node<K, V> node) {
+        if (node.key != null) {
+            return node.key;
+        }
+        // Only String keys are packed, so K is String here
+        return (K) new String(slab, node.keyOffset, node.keyLength, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isAscii(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        String str = (String) key;
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void packKey(Node<K, V> node, String key) {
+        int length = key.length();
+        if (slabUsed + length > slab.length) {
+            long newLength = Math.max((long) slab.length * 2, (long) slabUsed + length);
+            if (newLength > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Key slab is full.");
+            }
+            byte[] newSlab = new byte[(int) newLength];
+            System.arraycopy(slab, 0, newSlab, 0, slabUsed);
+            slab = newSlab;
+        }
+        for (int i = 0; i < length; i++) {
+            slab[slabUsed + i] = (byte) key.charAt(i);
+        }
+        node.keyOffset = slabUsed;
+        node.keyLength = length;
+        slabUsed += length;
+    }
+
+    /**
+     * Copies the packed keys still in use to a new slab, dropping the bytes of removed keys.
+     */
+    private void compactSlab() {
+        byte[] newSlab = new byte[Math.max(1024, slabUsed - slabGarbage)];
+        int used = 0;
+        for (Node<K, V> head : table) {
+            for (Node<K, V> node = head; node != null; node = node.next) {
+                if (node.key == null) {
+                    System.arraycopy(slab, node.keyOffset, newSlab, used, node.keyLength);
+                    node.keyOffset = used;
+                    used += node.keyLength;
+                }
+            }
+        }
+        slab = newSlab;
+        slabUsed = used;
+        slabGarbage = 0;
+    }
+
+    private void resize() {
+        Node<K, V>[] newTable = newTable(table.length * 2);
+        for (Node<K, V> head : table) {
+            Node<K, V> node = head;
+            while (node != null) {
+                Node<K, V> next = node.next;
+                int index = node.hash & (newTable.length - 1);
+                node.next = newTable[index];
+                newTable[index] = node;
+                node = next;
+            }
+        }
+        table = newTable;
+    }
+
+    /**
+     * Node of the chains. The key is null when it is packed in the slab, at keyOffset with keyLength bytes.
+     */
+    private static class Node<K, V> {
+
+        Node(int hash, V value) {
+            this.hash = hash;
+            this.value = value;
+        }
+
+        final int hash;
+        K key;
+        int keyOffset;
+        int keyLength;
+        V value;
+        Node<K, V> next;
+    }
+}
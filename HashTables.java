@@ -1,55 +1,193 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Class that implements HashTables, of key type String and value type String only.
- * The class has a maximum size of 1000, but can handle collisions in hash codes.
+ * The table starts with 1024 buckets and doubles once it is 3/4 full, and it can handle collisions in hash codes.
  * Implemented from scratch, without any Java Collection.
- * 
+ *
+ * Keys are hashed with a random seed chosen for every table, which defeats colliding keys prepared for
+ * String.hashCode() or for a known seed, and buckets whose chains grow past 8 nodes are converted to
+ * balanced trees. The seed alone is not a guarantee, since keys can be built that collide whatever the seed;
+ * the trees are what bound the worst case, searching even a flooded bucket in logarithmic time.
+ *
+ * A table can also be persisted: saveSnapshot() writes it to a compact binary file, and load() maps
+ * that file back without parsing its entries, optionally replaying a write log of the updates made
+ * since the snapshot. Keys loaded from a snapshot are read from the mapped file; any later update is
+ * kept in memory, shadowing the snapshot until the next one is saved.
+ *
+ * Large amounts of mappings can be loaded with putAll(), which presizes the table and builds the buckets
+ * in parallel, and read with getAll(). The mappings can also be traversed with a parallel stream, which
+ * splits the table by ranges of buckets. A table is not safe for concurrent updates, but any number of
+ * threads can read it while it is not being updated.
+ *
+ * Statistics about the shape of the table and the cost of lookups can be turned on with enableStats().
+ *
  * @author Rafael Souza
  */
-public class HashTables {
-    
-    private static final int SIZE = 1000;
+public class HashTables implements Closeable {
+
+    private static final int SIZE = 1024;
+    private static final int TREEIFY_THRESHOLD = 8;
+    private static final int UNTREEIFY_THRESHOLD = 6;
+    private static final int MAXIMUM_SIZE = 1 << 30;
+    private static final int PARALLEL_THRESHOLD = 1 << 12;
+
+    // Results of putInBucket()
+    private static final int COUNTED = 1;
+    private static final int ADDED_NODE = 2;
+    private static final SecureRandom SEEDS = new SecureRandom();
 
-    private Node[] table = new Node[SIZE];
+    private final int seed = newSeed();
+    private Node[] table;
+    private int count;
+    private int nodes; // nodes in the table, including the ones marking removed snapshot keys
+
+    private HashTablesSnapshot snapshot;
+    private HashTablesWriteLog writeLog;
+    private volatile HashTablesStats stats;
 
     /**
-     * Gets the array index based on the hash code of the key.
-     * @param key Key to use as basis for the index.
-     * @return Hashcode obtained to use as index in the array.
+     * Creates an empty table with the default amount of buckets.
      */
-    private int getIndexFromHash(String key) {
-        return Math.abs(key.hashCode()) % SIZE;
+    public HashTables() {
+        this(0);
     }
 
     /**
-     * Traverses a linkedlist and returns a reference to the last node in the list, using recursion.
-     * Assumes the initial node is not null.
-     * @param node The node to check.
-     * @return A reference to the last node in the list.
+     * Creates an empty table with enough buckets to hold the expected amount of mappings without growing.
+     * @param expectedSize The amount of mappings the table is expected to hold.
      */
-    private Node getLastNode(Node node) {
+    public HashTables(int expectedSize) {
+        table = new Node[tableSizeFor(expectedSize)];
+    }
 
-        if (node.next == null) {
-            return node;
-        } else {
-            return getLastNode(node);
+    /**
+     * Returns the amount of buckets needed to hold a given amount of nodes: a power of two, and at least SIZE.
+     */
+    private static int tableSizeFor(int expectedSize) {
+        long needed = (long) expectedSize * 4 / 3 + 1;
+        int length = SIZE;
+        while (length < needed && length < MAXIMUM_SIZE) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    /**
+     * Loads a table from a snapshot file and a write log. The snapshot is memory-mapped, so loading
+     * takes roughly the same time regardless of its size; only the log records are read one by one.
+     * Later updates are appended to the log, until the next call to saveSnapshot().
+     * @param snapshotFile The snapshot to load, or a file that does not exist yet to start empty.
+     * @param logFile The write log to replay and append to, or null to not log updates.
+     * @return The loaded table.
+     * @throws IOException If the snapshot or the log cannot be read.
+     */
+    public static HashTables load(File snapshotFile, File logFile) throws IOException {
+
+        HashTables ht = new HashTables();
+        if (snapshotFile.exists()) {
+            ht.snapshot = HashTablesSnapshot.map(snapshotFile);
+            ht.count = ht.snapshot.size();
+        }
+        if (logFile != null) {
+            ht.writeLog = HashTablesWriteLog.open(logFile, new HashTablesWriteLog.Replayer() {
+                public void put(String key, String value) {
+                    ht.putInMemory(key, value);
+                }
+
+                public void remove(String key) {
+                    ht.removeInMemory(key);
+                }
+            });
         }
+        return ht;
+    }
+
+    /**
+     * Chooses a random seed for a new table.
+     * @return The seed.
+     */
+    static int newSeed() {
+        return SEEDS.nextInt();
     }
 
     /**
-     * Traverses a linked list to get the value of a given key, using recursion.
+     * Seeded hash of a key, mixing every character of the key with the seed (MurmurHash3 style).
+     * Unlike String.hashCode(), the collisions depend on the seed, so the usual sets of colliding keys, like
+     * the blocks "Aa" and "BB", are spread over the table. It is not a keyed hash, though: the mixing of
+     * MurmurHash3 admits multicollisions that hold for every seed, so a client that knows the function can
+     * still flood a bucket, and only the treeified buckets keep such a bucket fast.
+     * @param key Key to hash.
+     * @param seed The seed of the table.
+     * @return The mixed hash of the key.
+     */
+    static int hash(String key, int seed) {
+
+        int h = seed;
+        int length = key.length();
+        int i = 0;
+
+        for (; i + 1 < length; i += 2) {
+            h ^= mixChars(key.charAt(i) | (key.charAt(i + 1) << 16));
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        if (i < length) {
+            h ^= mixChars(key.charAt(i));
+        }
+
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static int mixChars(int k) {
+        return Integer.rotateLeft(k * 0xcc9e2d51, 15) * 0x1b873593;
+    }
+
+    /**
+     * Gets the array index based on the hash of the key. The size of the table is a power of two,
+     * so the index is obtained by masking the hash instead of a modulo, and is never negative.
+     * @param hash Hash to use as basis for the index.
+     * @return Index of the bucket in the array.
+     */
+    private int getIndexFromHash(int hash) {
+        return hash & (table.length - 1);
+    }
+
+    /**
+     * Traverses a bucket to get the node of a given key. Chains are traversed using recursion,
+     * comparing the cached hash before calling equals; treeified buckets are searched in their tree.
      * Returns null if not found.
      * @param node The node to check.
+     * @param hash The hash of the key.
      * @param key The key to check.
-     * @return The value associated with the key, or null if not found.
+     * @return The node associated with the key, or null if not found.
      */
-    private String getValueFromKey(Node node, String key) {
+    private Node getNodeFromKey(Node node, int hash, String key) {
 
         if (node == null) {
             return null;
-        } else if (node.key.equals(key)) {
-            return node.value;
+        } else if (node instanceof TreeBin) {
+            return ((TreeBin) node).find(hash, key);
+        } else if (node.hash == hash && node.key.equals(key)) {
+            return node;
         } else {
-            return getValueFromKey(node.next, key);
+            return getNodeFromKey(node.next, hash, key);
         }
     }
 
@@ -59,100 +197,810 @@ public class HashTables {
      * @return The value associated with that key, or null if not found.
      */
     public String get(String key) {
-        return getValueFromKey(table[getIndexFromHash(key)], key);
+        int hash = hash(key, seed);
+        Node head = table[getIndexFromHash(hash)];
+        HashTablesStats currentStats = stats;
+        Node node = currentStats == null ? getNodeFromKey(head, hash, key)
+                : getNodeCountingProbes(head, hash, key, currentStats);
+        if (node != null) {
+            return node.value;
+        }
+        return snapshot == null ? null : snapshot.get(key);
     }
 
     /**
-     * Add to the table a new mapping of key/value.
-     * 
+     * Searches a bucket for a key like getNodeFromKey(), recording in the stats how many nodes it compared.
+     */
+    private static Node getNodeCountingProbes(Node head, int hash, String key, HashTablesStats currentStats) {
+        if (head instanceof TreeBin) {
+            return ((TreeBin) head).find(hash, key, currentStats);
+        }
+        int probes = 0;
+        Node runner = head;
+        while (runner != null) {
+            probes++;
+            if (runner.hash == hash && runner.key.equals(key)) {
+                break;
+            }
+            runner = runner.next;
+        }
+        currentStats.recordGet(probes);
+        return runner;
+    }
+
+    /**
+     * Add to the table a new mapping of key/value, replacing the previous value of the key if there was one.
+     *
      * @param key The key to associate the value with.
      * @param value The value to associate the key with.
+     * @throws IllegalArgumentException If the key or the value are null.
      */
     public void put(String key, String value) {
-        Node newNode = new Node(key, value);
-        if (table[getIndexFromHash(key)] == null) {
-            table[getIndexFromHash(key)] = newNode;
-        } else {
-            Node nodeToSet = getLastNode(table[getIndexFromHash(key)]);
-            nodeToSet.next = newNode;
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key and value cannot be null.");
+        }
+        if (writeLog != null) {
+            try {
+                writeLog.appendPut(key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
+        putInMemory(key, value);
+    }
+
+    private void putInMemory(String key, String value) {
+        int hash = hash(key, seed);
+        int result = putInBucket(getIndexFromHash(hash), hash, key, value);
+
+        if ((result & COUNTED) != 0) {
+            count++;
+        }
+        if ((result & ADDED_NODE) != 0 && ++nodes > table.length * 3 / 4) {
+            resize(table.length * 2);
+        }
+    }
+
+    /**
+     * Sets the value of a key in its bucket. Only the given bucket is read and written, so different
+     * buckets can be updated by different threads.
+     * @return COUNTED if the key is new to the table, plus ADDED_NODE if a node was added to the bucket.
+     */
+    private int putInBucket(int index, int hash, String key, String value) {
+        Node node = getNodeFromKey(table[index], hash, key);
+
+        if (node != null) {
+            int result = node.value == null ? COUNTED : 0; // the key had been removed from the snapshot
+            node.value = value;
+            return result;
+        }
+
+        addNode(table, index, hash, key, value);
+        if (snapshot == null || !snapshot.containsKey(key)) {
+            return COUNTED | ADDED_NODE;
+        }
+        return ADDED_NODE;
     }
 
     /**
-     * Removes the item in the table associated with that key. 
+     * Adds a node for a key that is not in the bucket yet, converting the bucket to a tree once its
+     * chain reaches TREEIFY_THRESHOLD nodes.
+     */
+    private static void addNode(Node[] table, int index, int hash, String key, String value) {
+
+        Node head = table[index];
+        if (head instanceof TreeBin) {
+            ((TreeBin) head).insert(hash, key, value);
+            return;
+        }
+
+        Node newNode = new Node(key, value, hash);
+        if (head == null) {
+            table[index] = newNode;
+            return;
+        }
+
+        int length = 1;
+        Node last = head;
+        while (last.next != null) {
+            last = last.next;
+            length++;
+        }
+        last.next = newNode;
+
+        if (length + 1 >= TREEIFY_THRESHOLD) {
+            TreeBin bin = new TreeBin();
+            for (Node runner = head; runner != null; runner = runner.next) {
+                bin.insert(runner.hash, runner.key, runner.value);
+            }
+            table[index] = bin;
+        }
+    }
+
+    /**
+     * Removes the item in the table associated with that key.
      * @param key The key to remove.
      * @return The value removed, or null if not found.
      */
     public String remove(String key) {
-        int index = getIndexFromHash(key);
+        if (writeLog != null) {
+            try {
+                writeLog.appendRemove(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return removeInMemory(key);
+    }
+
+    /**
+     * Removes a key from the in-memory table. A key that is also in the snapshot is not unlinked,
+     * its node is kept with a null value instead, so that it keeps shadowing the snapshot.
+     */
+    private String removeInMemory(String key) {
+        int hash = hash(key, seed);
+        int index = getIndexFromHash(hash);
+        Node node = getNodeFromKey(table[index], hash, key);
+        boolean inSnapshot = snapshot != null && snapshot.containsKey(key);
+
+        if (node == null) {
+            if (!inSnapshot) {
+                return null;
+            }
+            addNode(table, index, hash, key, null);
+            nodes++;
+            count--;
+            return snapshot.get(key);
+        }
+
+        String value = node.value;
+        if (value == null) {
+            return null;
+        }
+        if (inSnapshot) {
+            node.value = null;
+        } else {
+            unlinkNode(index, hash, key);
+            nodes--;
+        }
+        count--;
+        return value;
+    }
+
+    /**
+     * Unlinks the node of a key from its bucket, converting a tree back to a chain once it shrinks
+     * to UNTREEIFY_THRESHOLD nodes.
+     */
+    private void unlinkNode(int index, int hash, String key) {
+
+        Node head = table[index];
+        if (head instanceof TreeBin) {
+            TreeBin bin = (TreeBin) head;
+            bin.delete(hash, key);
+            if (bin.size <= UNTREEIFY_THRESHOLD) {
+                Node[] chain = { null, null }; // first and last node of the new chain
+                bin.forEach(treeNode -> {
+                    Node node = new Node(treeNode.key, treeNode.value, treeNode.hash);
+                    if (chain[0] == null) {
+                        chain[0] = node;
+                    } else {
+                        chain[1].next = node;
+                    }
+                    chain[1] = node;
+                });
+                table[index] = chain[0];
+            }
+            return;
+        }
+
+        Node previous = null;
+        Node runner = head;
+        while (runner.hash != hash || !runner.key.equals(key)) {
+            previous = runner;
+            runner = runner.next;
+        }
+        if (previous == null) {
+            table[index] = runner.next;
+        } else {
+            previous.next = runner.next;
+        }
+    }
+
+    /**
+     * Moves every node to a new array of buckets. The hashes are cached in the nodes, so no key is hashed again.
+     */
+    private void resize(int newLength) {
+        Node[] newTable = new Node[newLength];
+        for (Node head : table) {
+            forEachNode(head, node -> addNode(newTable, node.hash & (newLength - 1), node.hash, node.key, node.value));
+        }
+        table = newTable;
 
-        if (table[index].next == null) {
-            String value = table[index].value;
-            table[index] = null;
-            return value;
+        HashTablesStats currentStats = stats;
+        if (currentStats != null) {
+            currentStats.recordRehash();
+        }
+    }
+
+    /**
+     * Performs the given action for every node of a bucket, chained or treeified.
+     */
+    private static void forEachNode(Node head, Consumer<Node> action) {
+        if (head instanceof TreeBin) {
+            ((TreeBin) head).forEach(action::accept);
         } else {
-            Node previous = table[index];
-            Node runner = table[index].next;
-            while (true) {
-                if (runner.key.equals(key)) {
-                    String value = runner.value;
-                    previous.next = null;
-                    return value;
-                } else {
-                    previous = runner;
-                    runner = previous.next;
+            for (Node runner = head; runner != null; runner = runner.next) {
+                action.accept(runner);
+            }
+        }
+    }
+
+    /**
+     * Adds every key/value mapping of the arrays to the table, as if put() was called for each of them in order.
+     * The table is first grown to fit all the mappings, then every key is hashed exactly once, and the buckets
+     * are split in ranges that are filled in parallel, each by a single thread.
+     *
+     * @param keys The keys to associate the values with.
+     * @param values The values to associate the keys with, in the same order as the keys.
+     * @throws IllegalArgumentException If the arrays have different lengths, or contain null elements.
+     */
+    public void putAll(String[] keys, String[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Keys and values must have the same length.");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || values[i] == null) {
+                throw new IllegalArgumentException("Key and value cannot be null.");
+            }
+        }
+        if (writeLog != null) {
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    writeLog.appendPut(keys[i], values[i]);
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
+
+        int n = keys.length;
+        if (n < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < n; i++) {
+                putInMemory(keys[i], values[i]);
+            }
+            return;
+        }
+
+        int newLength = tableSizeFor(nodes + n);
+        if (newLength > table.length) {
+            resize(newLength);
+        }
+
+        int[] hashes = new int[n];
+        IntStream.range(0, n).parallel().forEach(i -> hashes[i] = hash(keys[i], seed));
+
+        // Counting sort the positions by bucket, keeping the order of the arrays inside every bucket
+        int mask = table.length - 1;
+        int[] starts = new int[table.length + 1];
+        for (int hash : hashes) {
+            starts[(hash & mask) + 1]++;
+        }
+        for (int b = 0; b < table.length; b++) {
+            starts[b + 1] += starts[b];
+        }
+        int[] order = new int[n];
+        int[] next = starts.clone();
+        for (int i = 0; i < n; i++) {
+            order[next[hashes[i] & mask]++] = i;
+        }
+
+        int tasks = Math.min(table.length, 4 * Runtime.getRuntime().availableProcessors());
+        int bucketsPerTask = (table.length + tasks - 1) / tasks;
+        int[] counted = new int[tasks];
+        int[] added = new int[tasks];
+
+        IntStream.range(0, tasks).parallel().forEach(task -> {
+            int end = Math.min(table.length, (task + 1) * bucketsPerTask);
+            for (int b = task * bucketsPerTask; b < end; b++) {
+                for (int p = starts[b]; p < starts[b + 1]; p++) {
+                    int i = order[p];
+                    int result = putInBucket(b, hashes[i], keys[i], values[i]);
+                    if ((result & COUNTED) != 0) {
+                        counted[task]++;
+                    }
+                    if ((result & ADDED_NODE) != 0) {
+                        added[task]++;
+                    }
+                }
+            }
+        });
+
+        for (int task = 0; task < tasks; task++) {
+            count += counted[task];
+            nodes += added[task];
+        }
+    }
+
+    /**
+     * Adds every key/value mapping of the stream to the table, using the parallel build of putAll(String[], String[]).
+     *
+     * @param entries The mappings to add.
+     * @throws IllegalArgumentException If a key or a value are null.
+     */
+    public void putAll(Stream<? extends Map.Entry<String, String>> entries) {
+        Object[] array = entries.toArray();
+        String[] keys = new String[array.length];
+        String[] values = new String[array.length];
+        for (int i = 0; i < array.length; i++) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) array[i];
+            keys[i] = (String) entry.getKey();
+            values[i] = (String) entry.getValue();
+        }
+        putAll(keys, values);
+    }
+
+    /**
+     * Gets the values associated with a batch of keys. Large batches are looked up in parallel.
+     * @param keys The keys to search for.
+     * @return The values associated with the keys, in the same order, with null for the keys not found.
+     */
+    public String[] getAll(String[] keys) {
+        String[] values = new String[keys.length];
+        IntStream positions = IntStream.range(0, keys.length);
+        if (keys.length >= PARALLEL_THRESHOLD) {
+            positions = positions.parallel();
+        }
+        positions.forEach(i -> values[i] = get(keys[i]));
+        return values;
+    }
+
+    /**
+     * Performs the given action for every key/value mapping of the table, in no particular order.
+     * @param action The action to perform.
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        for (int bucket = 0; bucket < bucketCount(); bucket++) {
+            forEachInBucket(bucket, action);
+        }
+    }
+
+    /**
+     * Returns a sequential stream of the key/value mappings of the table.
+     * @return The stream.
+     */
+    public Stream<Map.Entry<String, String>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream of the key/value mappings of the table, split by ranges of buckets.
+     * @return The stream.
+     */
+    public Stream<Map.Entry<String, String>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Returns a spliterator over the key/value mappings of the table, which splits by ranges of buckets.
+     * @return The spliterator.
+     */
+    public Spliterator<Map.Entry<String, String>> spliterator() {
+        return new BucketSpliterator(0, bucketCount());
+    }
+
+    /**
+     * Returns the amount of buckets to traverse: the ones of the table followed by the ones of the snapshot.
+     */
+    private int bucketCount() {
+        return table.length + (snapshot == null ? 0 : snapshot.bucketCount());
+    }
+
+    /**
+     * Performs the given action for every live mapping of a bucket. Buckets past the end of the table are
+     * buckets of the snapshot, whose keys are skipped if they are shadowed by a node of the table.
+     */
+    private void forEachInBucket(int bucket, BiConsumer<String, String> action) {
+        if (bucket < table.length) {
+            forEachNode(table[bucket], node -> {
+                if (node.value != null) {
+                    action.accept(node.key, node.value);
+                }
+            });
+        } else {
+            snapshot.forEachInBucket(bucket - table.length, (key, value) -> {
+                int hash = hash(key, seed);
+                if (getNodeFromKey(table[getIndexFromHash(hash)], hash, key) == null) {
+                    action.accept(key, value);
+                }
+            });
+        }
     }
 
     /**
      * Returns whether or not the given key is in the table.
-     * 
+     *
      * @param key The key to look for.
      * @return True if the key is there, false if not.
      */
     public boolean containsKey(String key) {
-        return table[getIndexFromHash(key)] != null;
+        return get(key) != null;
     }
 
     /**
-     * Returns the amount of key/value mappings in the table. Because the table can handle collisions, 
+     * Returns the amount of key/value mappings in the table. Because the table can handle collisions,
      * this value can be larger than the size of the table.
      * @return the actual size of the table.
      */
     public int size() {
+        return count;
+    }
 
-        int counter = 0;
-        for (int i = 0; i < table.length; i++) {
-            if (table[i] != null) {
-                Node runner = table[i];
-                while (true) {
-                    counter++;
-                    if (runner.next == null) {
-                        break;
-                    } else {
-                        runner = runner.next;
-                    }
+    /**
+     * Writes every mapping of the table to a snapshot file, which can later be reloaded with load().
+     * The file is replaced atomically, and the write log is only cleared after the new snapshot is
+     * safely on disk, so a crash at any point leaves a consistent snapshot and log behind.
+     * @param snapshotFile The file to write.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public void saveSnapshot(File snapshotFile) throws IOException {
+
+        String[] keys = new String[count];
+        String[] values = new String[count];
+        int[] n = { 0 };
+
+        forEach((key, value) -> {
+            keys[n[0]] = key;
+            values[n[0]] = value;
+            n[0]++;
+        });
+
+        HashTablesSnapshot.write(snapshotFile, keys, values, n[0], seed);
+        if (writeLog != null) {
+            writeLog.reset();
+        }
+    }
+
+    /**
+     * Turns on the statistics of the table, which stay on until disableStats() is called.
+     * @return The statistics, which can also be published through JMX.
+     */
+    public HashTablesStats enableStats() {
+        HashTablesStats currentStats = stats;
+        if (currentStats == null) {
+            currentStats = new HashTablesStats(this);
+            stats = currentStats;
+        }
+        return currentStats;
+    }
+
+    /**
+     * Turns off the statistics of the table, so lookups stop counting their probes.
+     */
+    public void disableStats() {
+        stats = null;
+    }
+
+    /**
+     * Takes a snapshot of the statistics of the table. The shape of the table is always available,
+     * the counters are zero unless stats are enabled.
+     * The table is walked without any locking, like every other method of the class: taken while it is being
+     * updated, for example from the JMX thread, a snapshot may miss or count twice the nodes being moved.
+     * @return The snapshot.
+     */
+    public HashTablesStats.Snapshot statsSnapshot() {
+
+        long[] histogram = new long[HashTablesStats.HISTOGRAM_SIZE];
+        long totalNodes = 0;
+        int maxChainLength = 0;
+        int treeifiedBuckets = 0;
+
+        for (Node head : table) {
+            int length;
+            if (head instanceof TreeBin) {
+                length = ((TreeBin) head).size;
+                treeifiedBuckets++;
+            } else {
+                length = 0;
+                for (Node runner = head; runner != null; runner = runner.next) {
+                    length++;
+                }
+            }
+            histogram[Math.min(length, histogram.length - 1)]++;
+            totalNodes += length;
+            maxChainLength = Math.max(maxChainLength, length);
+        }
+
+        HashTablesStats currentStats = stats;
+        long gets = currentStats == null ? 0 : currentStats.gets();
+        long probes = currentStats == null ? 0 : currentStats.probes();
+        long rehashes = currentStats == null ? 0 : currentStats.rehashes();
+        return new HashTablesStats.Snapshot(count, table.length, histogram, totalNodes, maxChainLength,
+                treeifiedBuckets, gets, probes, rehashes);
+    }
+
+    /**
+     * Forces the updates appended to the write log to the disk. Without it, logged updates survive a
+     * crash of the program, but not necessarily of the machine.
+     * @throws IOException If the log cannot be forced.
+     */
+    public void flush() throws IOException {
+        if (writeLog != null) {
+            writeLog.flush();
+        }
+    }
+
+    /**
+     * Closes the write log, if the table has one.
+     * @throws IOException If the log cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writeLog != null) {
+            writeLog.close();
+        }
+    }
+
+    /**
+     * Spliterator over a range of buckets. It is split by halving the range of buckets not traversed yet;
+     * tryAdvance() copies the mappings of one bucket at a time to a small buffer.
+     */
+    private class BucketSpliterator implements Spliterator<Map.Entry<String, String>> {
+
+        private int index;
+        private final int fence;
+        private String[] pendingKeys = new String[TREEIFY_THRESHOLD];
+        private String[] pendingValues = new String[TREEIFY_THRESHOLD];
+        private int pendingCount;
+        private int pendingPosition;
+
+        BucketSpliterator(int index, int fence) {
+            this.index = index;
+            this.fence = fence;
+        }
+
+        private void buffer(String key, String value) {
+            if (pendingCount == pendingKeys.length) {
+                String[] keys = new String[pendingCount * 2];
+                String[] values = new String[pendingCount * 2];
+                System.arraycopy(pendingKeys, 0, keys, 0, pendingCount);
+                System.arraycopy(pendingValues, 0, values, 0, pendingCount);
+                pendingKeys = keys;
+                pendingValues = values;
+            }
+            pendingKeys[pendingCount] = key;
+            pendingValues[pendingCount] = value;
+            pendingCount++;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<String, String>> action) {
+            while (pendingPosition == pendingCount) {
+                if (index >= fence) {
+                    return false;
                 }
+                pendingCount = 0;
+                pendingPosition = 0;
+                forEachInBucket(index++, this::buffer);
             }
+            action.accept(new AbstractMap.SimpleImmutableEntry<>(pendingKeys[pendingPosition], pendingValues[pendingPosition]));
+            pendingPosition++;
+            return true;
         }
 
-        return counter;
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<String, String>> action) {
+            while (pendingPosition < pendingCount) {
+                action.accept(new AbstractMap.SimpleImmutableEntry<>(pendingKeys[pendingPosition], pendingValues[pendingPosition]));
+                pendingPosition++;
+            }
+            while (index < fence) {
+                forEachInBucket(index++, (key, value) -> action.accept(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<String, String>> trySplit() {
+            int middle = (index + fence) >>> 1;
+            if (middle <= index) {
+                return null;
+            }
+            Spliterator<Map.Entry<String, String>> prefix = new BucketSpliterator(index, middle);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) count * (fence - index) / Math.max(1, bucketCount());
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
     }
 
     /**
      * Class to implement the linked list. All the keys and values will be stored as nodes in the list, to handle collision of hash codes.
+     * The hash of the key is cached in the node, so chains compare it before calling equals.
+     * A node with a null value marks a key removed from the snapshot.
      */
-    private class Node {
+    private static class Node {
 
-        Node(String key, String value) {
+        Node(String key, String value, int hash) {
             this.key = key;
             this.value = value;
+            this.hash = hash;
         }
 
         String key;
         String value;
+        int hash;
         Node next;
     }
-}
\ No newline at end of file
+
+    /**
+     * Node of a treeified bucket.
+     */
+    private static class TreeNode extends Node {
+
+        TreeNode(String key, String value, int hash) {
+            super(key, value, hash);
+        }
+
+        TreeNode left;
+        TreeNode right;
+        int height = 1;
+    }
+
+    /**
+     * Bucket holding its nodes in an AVL tree, ordered by hash and then by key, so a bucket flooded with
+     * colliding keys is still searched in logarithmic time. It is stored in the table in place of the
+     * head of the chain.
+     */
+    private static class TreeBin extends Node {
+
+        TreeBin() {
+            super(null, null, 0);
+        }
+
+        TreeNode root;
+        int size;
+
+        private static int compare(int hash, String key, TreeNode node) {
+            int c = Integer.compare(hash, node.hash);
+            return c != 0 ? c : key.compareTo(node.key);
+        }
+
+        Node find(int hash, String key) {
+            TreeNode node = root;
+            while (node != null) {
+                int c = compare(hash, key, node);
+                if (c == 0) {
+                    return node;
+                }
+                node = c < 0 ? node.left : node.right;
+            }
+            return null;
+        }
+
+        /**
+         * Searches the tree like find(), recording in the stats how many nodes it compared.
+         */
+        Node find(int hash, String key, HashTablesStats currentStats) {
+            int probes = 0;
+            TreeNode node = root;
+            while (node != null) {
+                probes++;
+                int c = compare(hash, key, node);
+                if (c == 0) {
+                    break;
+                }
+                node = c < 0 ? node.left : node.right;
+            }
+            currentStats.recordGet(probes);
+            return node;
+        }
+
+        /**
+         * Inserts a key that is not in the tree yet.
+         */
+        void insert(int hash, String key, String value) {
+            root = insert(root, new TreeNode(key, value, hash));
+            size++;
+        }
+
+        private TreeNode insert(TreeNode node, TreeNode newNode) {
+            if (node == null) {
+                return newNode;
+            }
+            if (compare(newNode.hash, newNode.key, node) < 0) {
+                node.left = insert(node.left, newNode);
+            } else {
+                node.right = insert(node.right, newNode);
+            }
+            return balance(node);
+        }
+
+        /**
+         * Deletes a key that is in the tree.
+         */
+        void delete(int hash, String key) {
+            root = delete(root, hash, key);
+            size--;
+        }
+
+        private TreeNode delete(TreeNode node, int hash, String key) {
+            int c = compare(hash, key, node);
+            if (c < 0) {
+                node.left = delete(node.left, hash, key);
+            } else if (c > 0) {
+                node.right = delete(node.right, hash, key);
+            } else if (node.left == null) {
+                return node.right;
+            } else if (node.right == null) {
+                return node.left;
+            } else {
+                TreeNode successor = node.right;
+                while (successor.left != null) {
+                    successor = successor.left;
+                }
+                successor.right = delete(node.right, successor.hash, successor.key);
+                successor.left = node.left;
+                node = successor;
+            }
+            return balance(node);
+        }
+
+        void forEach(Consumer<TreeNode> action) {
+            forEach(root, action);
+        }
+
+        private void forEach(TreeNode node, Consumer<TreeNode> action) {
+            if (node != null) {
+                forEach(node.left, action);
+                action.accept(node);
+                forEach(node.right, action);
+            }
+        }
+
+        private static int height(TreeNode node) {
+            return node == null ? 0 : node.height;
+        }
+
+        private static TreeNode balance(TreeNode node) {
+            int difference = height(node.left) - height(node.right);
+            if (difference > 1) {
+                if (height(node.left.left) < height(node.left.right)) {
+                    node.left = rotateLeft(node.left);
+                }
+                return rotateRight(node);
+            } else if (difference < -1) {
+                if (height(node.right.right) < height(node.right.left)) {
+                    node.right = rotateRight(node.right);
+                }
+                return rotateLeft(node);
+            }
+            node.height = 1 + Math.max(height(node.left), height(node.right));
+            return node;
+        }
+
+        private static TreeNode rotateRight(TreeNode node) {
+            TreeNode left = node.left;
+            node.left = left.right;
+            left.right = node;
+            node.height = 1 + Math.max(height(node.left), height(node.right));
+            left.height = 1 + Math.max(height(left.left), height(left.right));
+            return left;
+        }
+
+        private static TreeNode rotateLeft(TreeNode node) {
+            TreeNode right = node.right;
+            node.right = right.left;
+            right.left = node;
+            node.height = 1 + Math.max(height(node.left), height(node.right));
+            right.height = 1 + Math.max(height(right.left), height(right.right));
+            return right;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.Random;
+
+/**
+ * This class compares the performance of HashTables with the hashing it used before, a plain
+ * Math.abs(key.hashCode()) % 1000 index with unbounded chains, which is reproduced here as LegacyTable.
+ * Both tables are filled and then queried with 16,384 keys, either random or adversarial. The adversarial
+ * keys are built by concatenating the blocks "Aa" and "BB", which have the same String.hashCode(),
+ * so every one of them collides in the legacy table. They do not collide under the seeded hash of
+ * HashTables, which spreads them like random keys: this measures the attack the seeded hash removes, not
+ * a flood of keys colliding within the bucket mask of HashTables, which only its treeified buckets bound.
+ *
+ * The output obtained is below:
+ *
+ * -------- Random keys --------
+ * Legacy table, 16384 puts and gets: 8 ms
+ * HashTables, 16384 puts and gets: 9 ms
+ *
+ * -------- Adversarial keys (same String.hashCode) --------
+ * Legacy table, 16384 puts and gets: 1214 ms
+ * HashTables, 16384 puts and gets: 6 ms
+ *
+ * @author Rafael Souza
+ */
+public class HashTablesBenchmark {
+
+    private static final int KEYS = 1 << 14;
+    private static final int ROUNDS = 5;
+
+    /**
+     * Main function, that will execute the benchmark comparison.
+     *
+     * @param args Command line arguments, not used in the method.
+     */
+    public static void main(String[] args) {
+
+        String[] randomKeys = new String[KEYS];
+        Random rand = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            randomKeys[i] = Long.toString(rand.nextLong(), 36);
+        }
+
+        String[] collidingKeys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int bit = 0; bit < 14; bit++) {
+                key.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+            }
+            collidingKeys[i] = key.toString();
+        }
+
+        System.out.println("-------- Random keys --------");
+        compare(randomKeys);
+
+        System.out.println("\n-------- Adversarial keys (same String.hashCode) --------");
+        compare(collidingKeys);
+    }
+
+    private static void compare(String[] keys) {
+
+        // The first rounds only warm up the JIT, the last one is measured
+        long runTime = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startTime = System.currentTimeMillis();
+            LegacyTable legacy = new LegacyTable();
+            for (String key : keys) {
+                legacy.put(key, key);
+            }
+            for (String key : keys) {
+                legacy.get(key);
+            }
+            runTime = System.currentTimeMillis() - startTime;
+        }
+        System.out.printf("Legacy table, %d puts and gets: %d ms%n", keys.length, runTime);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long startTime = System.currentTimeMillis();
+            HashTables ht = new HashTables();
+            for (String key : keys) {
+                ht.put(key, key);
+            }
+            for (String key : keys) {
+                ht.get(key);
+            }
+            runTime = System.currentTimeMillis() - startTime;
+        }
+        System.out.printf("HashTables, %d puts and gets: %d ms%n", keys.length, runTime);
+    }
+
+    /**
+     * The hashing and chaining HashTables used before: a modulo of the raw hash code, and chains that
+     * are walked from the start on every put and get.
+     */
+    private static class LegacyTable {
+
+        private static final int SIZE = 1000;
+
+        private final Node[] table = new Node[SIZE];
+
+        private int getIndexFromHash(String key) {
+            return Math.abs(key.hashCode()) % SIZE;
+        }
+
+        String get(String key) {
+            for (Node node = table[getIndexFromHash(key)]; node != null; node = node.next) {
+                if (node.key.equals(key)) {
+                    return node.value;
+                }
+            }
+            return null;
+        }
+
+        void put(String key, String value) {
+            int index = getIndexFromHash(key);
+            Node newNode = new Node(key, value);
+            if (table[index] == null) {
+                table[index] = newNode;
+            } else {
+                Node last = table[index];
+                while (last.next != null) {
+                    last = last.next;
+                }
+                last.next = newNode;
+            }
+        }
+
+        private static class Node {
+
+            Node(String key, String value) {
+                this.key = key;
+                this.value = value;
+            }
+
+            String key;
+            String value;
+            Node next;
+        }
+    }
+}
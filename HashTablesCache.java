@@ -0,0 +1,508 @@
+import java.util.function.Function;
+
+/**
+ * Class that implements a bounded cache on top of the HashTables design, of key type String and value type String only.
+ * Entries are chained in buckets like in HashTables, using its seeded hash, and every node is also threaded on an intrusive
+ * doubly-linked list, used to pick the entries to evict once the maximum weight is exceeded.
+ *
+ * Two eviction policies are available:
+ *  - LRU: a single list in access order, the least recently used entry is evicted first.
+ *  - TINY_LFU: W-TinyLFU. New entries go into a small LRU window (1% of the weight); entries leaving the
+ *    window only replace an entry of the main space (a segmented LRU, with probation and protected lists)
+ *    if a count-min sketch estimates they are used more often than the entry they would replace.
+ *
+ * The weight of an entry is either 1, to bound the amount of entries, or an approximation of the bytes it
+ * retains, to bound the memory used. Entries can also expire after a time to live, checked when they are read.
+ * All the methods are synchronized, so a cache can be shared between threads.
+ *
+ * @author Rafael Souza
+ */
+public class HashTablesCache {
+
+    /**
+     * The policy used to choose the entries to evict.
+     */
+    public enum EvictionPolicy { LRU, TINY_LFU }
+
+    /**
+     * How the maximum weight of the cache is measured.
+     */
+    public enum Weight { ENTRIES, BYTES }
+
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final long maximumWeight;
+    private final Weight weight;
+    private final EvictionPolicy policy;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final int seed = HashTables.newSeed();
+    private Node[] table;
+    private int count;
+
+    // Heads and tails of the window, probation and protected lists, and the weight of each one
+    private final Node[] heads = new Node[3];
+    private final Node[] tails = new Node[3];
+    private final long[] weights = new long[3];
+
+    private final FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * Creates an empty cache.
+     * @param maximumWeight The maximum total weight of the entries, either in entries or in bytes.
+     * @param weight How the weight of an entry is measured.
+     * @param policy The eviction policy.
+     * @throws IllegalArgumentException If the maximum weight is not positive.
+     */
+    public HashTablesCache(long maximumWeight, Weight weight, EvictionPolicy policy) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("Maximum weight must be positive.");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weight = weight;
+        this.policy = policy;
+
+        if (policy == EvictionPolicy.LRU) {
+            windowMaximum = maximumWeight;
+            protectedMaximum = 0;
+        } else {
+            windowMaximum = Math.max(1, maximumWeight / 100);
+            protectedMaximum = (maximumWeight - windowMaximum) * 8 / 10;
+        }
+
+        long expectedEntries = weight == Weight.ENTRIES ? maximumWeight : maximumWeight / ENTRY_OVERHEAD_BYTES;
+        int capacity = 16;
+        while (capacity < expectedEntries && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        table = new Node[Math.min(capacity, 1 << 16)];
+        sketch = policy == EvictionPolicy.TINY_LFU ? new FrequencySketch(capacity) : null;
+    }
+
+    private int hash(String key) {
+        return HashTables.hash(key, seed);
+    }
+
+    private long weigh(String key, String value) {
+        if (weight == Weight.ENTRIES) {
+            return 1;
+        }
+        return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+    }
+
+    private Node getNode(String key, int hash) {
+        for (Node node = table[hash & (table.length - 1)]; node != null; node = node.next) {
+            if (node.hash == hash && node.key.equals(key)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the value associated with a key, marking it as recently used.
+     * @param key The key to search for.
+     * @return The value associated with that key, or null if not found or expired.
+     */
+    public synchronized String get(String key) {
+        int hash = hash(key);
+        if (sketch != null) {
+            sketch.increment(hash);
+        }
+
+        Node node = getNode(key, hash);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        if (node.expiresAt != 0 && System.nanoTime() - node.expiresAt >= 0) {
+            removeNode(node);
+            expirations++;
+            misses++;
+            return null;
+        }
+
+        hits++;
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * Gets the value associated with a key, computing and caching it if it is not in the cache.
+     * The computation runs without holding the lock of the cache, so it can be slow.
+     * @param key The key to search for.
+     * @param compute Computes the value of a missing key. If it returns null, nothing is cached.
+     * @return The cached or computed value.
+     */
+    public String computeIfAbsent(String key, Function<String, String> compute) {
+        String value = get(key);
+        if (value == null) {
+            value = compute.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Add to the cache a new mapping of key/value that does not expire.
+     * @param key The key to associate the value with.
+     * @param value The value to associate the key with.
+     */
+    public void put(String key, String value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Add to the cache a new mapping of key/value, replacing the previous value of the key if there was one.
+     * Entries heavier than the maximum weight of the cache are not stored.
+     * @param key The key to associate the value with.
+     * @param value The value to associate the key with.
+     * @param timeToLiveMillis The time after which the entry expires, or 0 to never expire.
+     * @throws IllegalArgumentException If the key or the value are null, or the time to live is negative.
+     */
+    public synchronized void put(String key, String value, long timeToLiveMillis) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key and value cannot be null.");
+        }
+        if (timeToLiveMillis < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative.");
+        }
+
+        int hash = hash(key);
+        long entryWeight = weigh(key, value);
+        long expiresAt = timeToLiveMillis == 0 ? 0 : (System.nanoTime() + timeToLiveMillis * 1_000_000L) | 1;
+        Node node = getNode(key, hash);
+
+        if (entryWeight > maximumWeight) {
+            if (node != null) {
+                removeNode(node);
+            }
+            return;
+        }
+
+        if (node != null) {
+            weights[node.queue] += entryWeight - node.weight;
+            node.value = value;
+            node.weight = entryWeight;
+            node.expiresAt = expiresAt;
+            onAccess(node);
+        } else {
+            if (sketch != null) {
+                sketch.increment(hash);
+            }
+            node = new Node(key, value, hash);
+            node.weight = entryWeight;
+            node.expiresAt = expiresAt;
+            int index = hash & (table.length - 1);
+            node.next = table[index];
+            table[index] = node;
+            count++;
+            linkLast(WINDOW, node);
+            if (count > table.length * 3 / 4) {
+                resize();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Removes the entry associated with that key.
+     * @param key The key to remove.
+     * @return The value removed, or null if not found.
+     */
+    public synchronized String remove(String key) {
+        Node node = getNode(key, hash(key));
+        if (node == null) {
+            return null;
+        }
+        removeNode(node);
+        return node.value;
+    }
+
+    /**
+     * Removes every expired entry. Expired entries are otherwise only removed when they are read or evicted.
+     */
+    public synchronized void cleanUp() {
+        long now = System.nanoTime();
+        for (int queue = WINDOW; queue <= PROTECTED; queue++) {
+            Node node = heads[queue];
+            while (node != null) {
+                Node after = node.after;
+                if (node.expiresAt != 0 && now - node.expiresAt >= 0) {
+                    removeNode(node);
+                    expirations++;
+                }
+                node = after;
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of entries in the cache, including expired entries not yet removed.
+     * @return The amount of entries.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the total weight of the entries in the cache.
+     * @return The weight, in entries or in approximate bytes.
+     */
+    public synchronized long weight() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    /**
+     * Returns the amount of reads that found a value.
+     * @return The amount of hits.
+     */
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the amount of reads that did not find a value, including expired ones.
+     * @return The amount of misses.
+     */
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the amount of entries evicted to respect the maximum weight.
+     * @return The amount of evictions.
+     */
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the amount of entries removed because they expired.
+     * @return The amount of expirations.
+     */
+    public synchronized long expirationCount() {
+        return expirations;
+    }
+
+    /**
+     * Returns the ratio of reads that found a value.
+     * @return The hit rate, between 0 and 1, or 0 if there were no reads.
+     */
+    public synchronized double hitRate() {
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    /**
+     * Updates the lists after an entry is read or replaced.
+     */
+    private void onAccess(Node node) {
+        if (node.queue == PROBATION) {
+            // Promote to the protected list, demoting its oldest entries if it grows too large
+            unlink(node);
+            linkLast(PROTECTED, node);
+            while (weights[PROTECTED] > protectedMaximum && heads[PROTECTED] != null) {
+                Node demoted = heads[PROTECTED];
+                unlink(demoted);
+                linkLast(PROBATION, demoted);
+            }
+        } else {
+            unlink(node);
+            linkLast(node.queue, node);
+        }
+    }
+
+    private void evict() {
+
+        if (policy == EvictionPolicy.LRU) {
+            while (weight() > maximumWeight) {
+                evictNode(heads[WINDOW]);
+            }
+            return;
+        }
+
+        // Entries leaving the window become admission candidates at the tail of the probation list
+        Node firstCandidate = null;
+        while (weights[WINDOW] > windowMaximum) {
+            Node candidate = heads[WINDOW];
+            unlink(candidate);
+            linkLast(PROBATION, candidate);
+            if (firstCandidate == null) {
+                firstCandidate = candidate;
+            }
+        }
+
+        while (weight() > maximumWeight) {
+            Node victim = heads[PROBATION];
+            Node candidate = firstCandidate;
+
+            if (victim == null) {
+                evictNode(heads[PROTECTED] != null ? heads[PROTECTED] : heads[WINDOW]);
+            } else if (candidate == null || candidate == victim) {
+                // Only candidates are left on probation, or none at all: evict the oldest entry
+                if (candidate != null) {
+                    firstCandidate = candidate.after;
+                }
+                evictNode(victim);
+            } else if (sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                evictNode(victim);
+            } else {
+                firstCandidate = candidate.after;
+                evictNode(candidate);
+            }
+        }
+    }
+
+    private void evictNode(Node node) {
+        removeNode(node);
+        evictions++;
+    }
+
+    private void removeNode(Node node) {
+        int index = node.hash & (table.length - 1);
+        if (table[index] == node) {
+            table[index] = node.next;
+        } else {
+            Node previous = table[index];
+            while (previous.next != node) {
+                previous = previous.next;
+            }
+            previous.next = node.next;
+        }
+        unlink(node);
+        count--;
+    }
+
+    private void linkLast(int queue, Node node) {
+        node.queue = queue;
+        node.before = tails[queue];
+        node.after = null;
+        if (tails[queue] == null) {
+            heads[queue] = node;
+        } else {
+            tails[queue].after = node;
+        }
+        tails[queue] = node;
+        weights[queue] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        if (node.before == null) {
+            heads[node.queue] = node.after;
+        } else {
+            node.before.after = node.after;
+        }
+        if (node.after == null) {
+            tails[node.queue] = node.before;
+        } else {
+            node.after.before = node.before;
+        }
+        node.before = null;
+        node.after = null;
+        weights[node.queue] -= node.weight;
+    }
+
+    private void resize() {
+        Node[] newTable = new Node[table.length * 2];
+        for (Node head : table) {
+            Node node = head;
+            while (node != null) {
+                Node next = node.next;
+                int index = node.hash & (newTable.length - 1);
+                node.next = newTable[index];
+                newTable[index] = node;
+                node = next;
+            }
+        }
+        table = newTable;
+    }
+
+    /**
+     * Node of the cache. Besides the bucket chain, every node is linked in the list given by its queue.
+     */
+    private static class Node {
+
+        Node(String key, String value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+
+        final String key;
+        String value;
+        final int hash;
+        long weight;
+        long expiresAt;
+        int queue;
+        Node next;
+        Node before;
+        Node after;
+    }
+
+    /**
+     * Count-min sketch estimating how often each key was used, with four rows of counters capped at 15.
+     * After a sample of increments, every counter is halved, so old popularity fades away.
+     */
+    private static class FrequencySketch {
+
+        private static final int ROWS = 4;
+        private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e39, 0x7fb3a8b5, 0x8f1bbcdc };
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Math.max(64, Math.min(capacity, 1 << 22));
+            counters = new byte[ROWS][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash + SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 15)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int index = indexOf(hash, row);
+                if (counters[row][index] < 15) {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (byte[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, counters[row][indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+    }
+}
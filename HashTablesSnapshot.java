@@ -0,0 +1,283 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only, memory-mapped image of a HashTables, used to reload a table without rebuilding it.
+ * The file is laid out as a hash table of its own, so lookups read straight from the mapping and
+ * nothing is parsed when the file is opened:
+ *
+ *   header:  magic, version, entry count, bucket count (a power of two), hash seed, data length
+ *   buckets: bucket count + 1 offsets into the data area; bucket i spans [offset[i], offset[i + 1])
+ *   data:    per entry: key hash, key length, value length, key bytes, value bytes (UTF-8)
+ *
+ * Keys are placed with the seeded hash of HashTables, under the seed of the table that wrote the
+ * snapshot, so keys colliding under String.hashCode() do not pile up in one bucket of a reloaded table.
+ *
+ * Snapshots are written to a temporary file, forced to disk and then atomically renamed over the
+ * target, so a crash while saving leaves the previous snapshot intact. The directory is forced to disk
+ * after the rename, so the new snapshot survives a crash once write() has returned.
+ * Because the whole file is mapped at once, a snapshot is limited to 2 GB.
+ *
+ * @author Rafael Souza
+ */
+class HashTablesSnapshot {
+
+    private static final int MAGIC = 0x48545331; // "HTS1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 28;
+    private static final int ENTRY_HEADER_BYTES = 12;
+
+    private final MappedByteBuffer buffer;
+    private final int entries;
+    private final int buckets;
+    private final int seed;
+    private final int dataStart;
+
+    private HashTablesSnapshot(MappedByteBuffer buffer, int entries, int buckets, int seed) {
+        this.buffer = buffer;
+        this.entries = entries;
+        this.buckets = buckets;
+        this.seed = seed;
+        this.dataStart = HEADER_BYTES + (buckets + 1) * 4;
+    }
+
+    /**
+     * Maps an existing snapshot file. Only the header is validated, entries are read on demand.
+     * @param file The snapshot file.
+     * @return The mapped snapshot.
+     * @throws IOException If the file cannot be mapped, or is not a complete snapshot.
+     */
+    static HashTablesSnapshot map(File file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Not a valid snapshot: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a valid snapshot: " + file);
+            }
+            int entries = buffer.getInt(8);
+            int buckets = buffer.getInt(12);
+            int seed = buffer.getInt(16);
+            long dataLength = buffer.getLong(20);
+            if (HEADER_BYTES + (buckets + 1) * 4L + dataLength != fileSize) {
+                throw new IOException("Snapshot is truncated: " + file);
+            }
+            return new HashTablesSnapshot(buffer, entries, buckets, seed);
+        }
+    }
+
+    /**
+     * Writes the given mappings as a snapshot, replacing the target file atomically.
+     * @param file The snapshot file to create or replace.
+     * @param keys The keys, the first count positions are used.
+     * @param values The values, aligned with the keys.
+     * @param count The amount of mappings.
+     * @param seed The seed of the hash that places the keys, see HashTables.hash().
+     * @throws IOException If the snapshot cannot be written.
+     */
+    static void write(File file, String[] keys, String[] values, int count, int seed) throws IOException {
+
+        int buckets = 1;
+        while (buckets < count) {
+            buckets <<= 1;
+        }
+
+        // Counting sort the entries by bucket, so every bucket is a contiguous run in the file
+        int[] hashes = new int[count];
+        int[] offsets = new int[buckets + 1];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = HashTables.hash(keys[i], seed);
+            offsets[bucketOf(hashes[i], buckets) + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            offsets[b + 1] += offsets[b];
+        }
+        int[] order = new int[count];
+        int[] next = offsets.clone();
+        for (int i = 0; i < count; i++) {
+            order[next[bucketOf(hashes[i], buckets)]++] = i;
+        }
+
+        byte[][] keyBytes = new byte[count][];
+        byte[][] valueBytes = new byte[count][];
+        long[] byteOffsets = new long[count + 1];
+        for (int n = 0; n < count; n++) {
+            int i = order[n];
+            keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+            valueBytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            byteOffsets[n + 1] = byteOffsets[n] + ENTRY_HEADER_BYTES + keyBytes[i].length + valueBytes[i].length;
+        }
+        long dataLength = byteOffsets[count];
+        if (HEADER_BYTES + (buckets + 1) * 4L + dataLength > Integer.MAX_VALUE) {
+            throw new IOException("Table is too large for a snapshot.");
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(buckets);
+            out.writeInt(seed);
+            out.writeLong(dataLength);
+            for (int b = 0; b <= buckets; b++) {
+                out.writeInt((int) byteOffsets[offsets[b]]);
+            }
+            for (int n = 0; n < count; n++) {
+                int i = order[n];
+                out.writeInt(hashes[i]);
+                out.writeInt(keyBytes[i].length);
+                out.writeInt(valueBytes[i].length);
+                out.write(keyBytes[i]);
+                out.write(valueBytes[i]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so a rename in it is durable. Some platforms, like Windows,
+     * cannot open a directory, in which case the rename is left to the file system.
+     */
+    private static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform
+        }
+    }
+
+    private static int bucketOf(int hash, int buckets) {
+        // The seeded hash is already mixed, so its low bits are used as they are
+        return hash & (buckets - 1);
+    }
+
+    /**
+     * Returns the amount of mappings stored in the snapshot.
+     * @return The amount of mappings.
+     */
+    int size() {
+        return entries;
+    }
+
+    /**
+     * Gets the value associated with a key, reading directly from the mapped file.
+     * @param key The key to search for.
+     * @return The value associated with that key, or null if not found.
+     */
+    String get(String key) {
+        int position = find(key);
+        if (position < 0) {
+            return null;
+        }
+        return readString(position + ENTRY_HEADER_BYTES + buffer.getInt(position + 4), buffer.getInt(position + 8));
+    }
+
+    /**
+     * Returns whether or not the given key is in the snapshot.
+     * @param key The key to look for.
+     * @return True if the key is there, false if not.
+     */
+    boolean containsKey(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Returns the amount of buckets in the snapshot, which is always a power of two.
+     * @return The amount of buckets.
+     */
+    int bucketCount() {
+        return buckets;
+    }
+
+    /**
+     * Performs the given action for every mapping stored in the given bucket.
+     * @param bucket The bucket index, between 0 and bucketCount() - 1.
+     * @param action The action to perform.
+     */
+    void forEachInBucket(int bucket, BiConsumer<String, String> action) {
+        int position = dataStart + buffer.getInt(HEADER_BYTES + bucket * 4);
+        int end = dataStart + buffer.getInt(HEADER_BYTES + (bucket + 1) * 4);
+        while (position < end) {
+            int keyLength = buffer.getInt(position + 4);
+            int valueLength = buffer.getInt(position + 8);
+            int keyStart = position + ENTRY_HEADER_BYTES;
+            action.accept(readString(keyStart, keyLength), readString(keyStart + keyLength, valueLength));
+            position = keyStart + keyLength + valueLength;
+        }
+    }
+
+    /**
+     * Performs the given action for every mapping stored in the snapshot.
+     * @param action The action to perform.
+     */
+    void forEach(BiConsumer<String, String> action) {
+        for (int b = 0; b < buckets; b++) {
+            forEachInBucket(b, action);
+        }
+    }
+
+    /**
+     * Finds the position of the entry for a key. The stored hash is compared first, so the key is
+     * only encoded and compared byte by byte when the hashes match.
+     */
+    private int find(String key) {
+
+        int hash = HashTables.hash(key, seed);
+        int bucket = bucketOf(hash, buckets);
+        int position = dataStart + buffer.getInt(HEADER_BYTES + bucket * 4);
+        int end = dataStart + buffer.getInt(HEADER_BYTES + (bucket + 1) * 4);
+        byte[] encoded = null;
+
+        while (position < end) {
+            int keyLength = buffer.getInt(position + 4);
+            int valueLength = buffer.getInt(position + 8);
+            int keyStart = position + ENTRY_HEADER_BYTES;
+            if (buffer.getInt(position) == hash) {
+                if (encoded == null) {
+                    encoded = key.getBytes(StandardCharsets.UTF_8);
+                }
+                if (bytesEqual(keyStart, keyLength, encoded)) {
+                    return position;
+                }
+            }
+            position = keyStart + keyLength + valueLength;
+        }
+        return -1;
+    }
+
+    private boolean bytesEqual(int start, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(int start, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,277 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of a HashTables, created by HashTables.enableStats(). While stats are disabled the table
+ * does not count anything, so they cost nothing; once enabled, every get() records how many nodes it
+ * compared (its probes), and every resize of the table is recorded as a rehash.
+ * The shape of the table (bucket occupancy, chain lengths) is computed when a snapshot is taken.
+ * The stats can also be published as a JMX MBean, under "HashTables:type=HashTablesStats,name=...". The
+ * shape attributes of the MBean share one snapshot, taken at most every SNAPSHOT_MAX_AGE_MILLIS, so a JMX
+ * client reading all of them walks the table once. The table is not thread-safe and is read from the JMX
+ * thread without synchronization, so while it is being updated the values are approximate.
+ *
+ * @author Rafael Souza
+ */
+public class HashTablesStats implements HashTablesStatsMBean {
+
+    /**
+     * Chains of this length or longer are counted in the last position of the occupancy histogram.
+     */
+    public static final int HISTOGRAM_SIZE = 16;
+
+    /**
+     * How long the snapshot read by the shape attributes of the MBean is reused.
+     */
+    static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    private final HashTables table;
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder probes = new LongAdder();
+    private final AtomicLong rehashes = new AtomicLong();
+    private ObjectName objectName;
+    private volatile Snapshot shared;
+
+    HashTablesStats(HashTables table) {
+        this.table = table;
+    }
+
+    void recordGet(int probeCount) {
+        gets.increment();
+        probes.add(probeCount);
+    }
+
+    void recordRehash() {
+        rehashes.incrementAndGet();
+    }
+
+    long gets() {
+        return gets.sum();
+    }
+
+    long probes() {
+        return probes.sum();
+    }
+
+    long rehashes() {
+        return rehashes.get();
+    }
+
+    /**
+     * Takes a snapshot of the counters and of the shape of the table.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        return table.statsSnapshot();
+    }
+
+    /**
+     * @return The snapshot shared by the MBean attributes, taken again once it is SNAPSHOT_MAX_AGE_MILLIS old.
+     */
+    private Snapshot sharedSnapshot() {
+        Snapshot current = shared;
+        if (current == null || System.currentTimeMillis() - current.takenAt > SNAPSHOT_MAX_AGE_MILLIS) {
+            current = snapshot();
+            shared = current;
+        }
+        return current;
+    }
+
+    /**
+     * Publishes the stats in the platform MBean server.
+     * @param name The name that identifies the table.
+     * @throws JMException If the MBean cannot be registered, for example if the name is already used.
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName newName = new ObjectName("HashTables:type=HashTablesStats,name=" + ObjectName.quote(name));
+        server.registerMBean(this, newName);
+        objectName = newName;
+    }
+
+    /**
+     * Removes the stats from the platform MBean server, if they were published.
+     * @throws JMException If the MBean cannot be unregistered.
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getEntries() {
+        return sharedSnapshot().getEntries();
+    }
+
+    @Override
+    public int getBuckets() {
+        return sharedSnapshot().getBuckets();
+    }
+
+    @Override
+    public double getLoadFactor() {
+        return sharedSnapshot().getLoadFactor();
+    }
+
+    @Override
+    public long[] getOccupancyHistogram() {
+        return sharedSnapshot().getOccupancyHistogram();
+    }
+
+    @Override
+    public int getMaxChainLength() {
+        return sharedSnapshot().getMaxChainLength();
+    }
+
+    @Override
+    public double getMeanChainLength() {
+        return sharedSnapshot().getMeanChainLength();
+    }
+
+    @Override
+    public int getTreeifiedBuckets() {
+        return sharedSnapshot().getTreeifiedBuckets();
+    }
+
+    @Override
+    public long getGets() {
+        return gets();
+    }
+
+    @Override
+    public double getMeanProbesPerGet() {
+        long count = gets();
+        return count == 0 ? 0 : (double) probes() / count;
+    }
+
+    @Override
+    public long getRehashes() {
+        return rehashes();
+    }
+
+    /**
+     * Resets the get, probe and rehash counters.
+     */
+    @Override
+    public void reset() {
+        gets.reset();
+        probes.reset();
+        rehashes.set(0);
+    }
+
+    /**
+     * Immutable statistics of a table at a given moment.
+     */
+    public static class Snapshot {
+
+        private final int entries;
+        private final int buckets;
+        private final long[] occupancyHistogram;
+        private final long nodes;
+        private final int maxChainLength;
+        private final int treeifiedBuckets;
+        private final long gets;
+        private final long probes;
+        private final long rehashes;
+        final long takenAt = System.currentTimeMillis();
+
+        Snapshot(int entries, int buckets, long[] occupancyHistogram, long nodes, int maxChainLength,
+                int treeifiedBuckets, long gets, long probes, long rehashes) {
+            this.entries = entries;
+            this.buckets = buckets;
+            this.occupancyHistogram = occupancyHistogram;
+            this.nodes = nodes;
+            this.maxChainLength = maxChainLength;
+            this.treeifiedBuckets = treeifiedBuckets;
+            this.gets = gets;
+            this.probes = probes;
+            this.rehashes = rehashes;
+        }
+
+        /**
+         * @return The amount of mappings in the table.
+         */
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return The amount of buckets of the in-memory table.
+         */
+        public int getBuckets() {
+            return buckets;
+        }
+
+        /**
+         * @return The amount of mappings per bucket.
+         */
+        public double getLoadFactor() {
+            return (double) entries / buckets;
+        }
+
+        /**
+         * @return The amount of buckets holding each amount of nodes, from 0 up to HISTOGRAM_SIZE - 1 or more.
+         */
+        public long[] getOccupancyHistogram() {
+            return occupancyHistogram.clone();
+        }
+
+        /**
+         * @return The amount of nodes in the largest bucket.
+         */
+        public int getMaxChainLength() {
+            return maxChainLength;
+        }
+
+        /**
+         * @return The mean amount of nodes in the buckets that are not empty.
+         */
+        public double getMeanChainLength() {
+            long used = buckets - occupancyHistogram[0];
+            return used == 0 ? 0 : (double) nodes / used;
+        }
+
+        /**
+         * @return The amount of buckets converted to trees.
+         */
+        public int getTreeifiedBuckets() {
+            return treeifiedBuckets;
+        }
+
+        /**
+         * @return The amount of calls to get() since the stats were enabled or reset.
+         */
+        public long getGets() {
+            return gets;
+        }
+
+        /**
+         * @return The mean amount of nodes compared by a call to get().
+         */
+        public double getMeanProbesPerGet() {
+            return gets == 0 ? 0 : (double) probes / gets;
+        }
+
+        /**
+         * @return The amount of times the table was resized.
+         */
+        public long getRehashes() {
+            return rehashes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entries=%d buckets=%d load=%.2f maxChain=%d meanChain=%.2f treeified=%d gets=%d"
+                    + " meanProbes=%.2f rehashes=%d histogram=%s", entries, buckets, getLoadFactor(), maxChainLength,
+                    getMeanChainLength(), treeifiedBuckets, gets, getMeanProbesPerGet(), rehashes,
+                    Arrays.toString(occupancyHistogram));
+        }
+    }
+}
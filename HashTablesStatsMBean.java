@@ -0,0 +1,30 @@
+/**
+ * JMX management interface of HashTablesStats. The attributes of the shape of the table are read from a
+ * snapshot shared for up to HashTablesStats.SNAPSHOT_MAX_AGE_MILLIS; the counters are always current.
+ *
+ * @author Rafael Souza
+ */
+public interface HashTablesStatsMBean {
+
+    int getEntries();
+
+    int getBuckets();
+
+    double getLoadFactor();
+
+    long[] getOccupancyHistogram();
+
+    int getMaxChainLength();
+
+    double getMeanChainLength();
+
+    int getTreeifiedBuckets();
+
+    long getGets();
+
+    double getMeanProbesPerGet();
+
+    long getRehashes();
+
+    void reset();
+}
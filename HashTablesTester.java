@@ -1,6 +1,9 @@
+import java.io.File;
+import java.io.IOException;
+
 public class HashTablesTester {
     
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         
         HashTables ht = new HashTables();
 
@@ -21,5 +24,65 @@ public class HashTablesTester {
         System.out.println("Contains key 2: " + ht.containsKey("key 2"));
         System.out.println("Contains key 3: " + ht.containsKey("key 3"));
 
+        System.out.println("Saving snapshot and reloading...");
+
+        File snapshotFile = new File("hashtables.snapshot");
+        File logFile = new File("hashtables.log");
+        ht.saveSnapshot(snapshotFile);
+
+        try (HashTables loaded = HashTables.load(snapshotFile, logFile)) {
+            loaded.put("key 4", "value 4");
+            loaded.remove("key 1");
+            System.out.println("Reloaded size: " + loaded.size());
+        }
+        try (HashTables replayed = HashTables.load(snapshotFile, logFile)) {
+            System.out.println("Value in key 4 after replaying the log: " + replayed.get("key 4"));
+            System.out.println("Contains key 1 after replaying the log: " + replayed.containsKey("key 1"));
+        }
+
+        snapshotFile.delete();
+        logFile.delete();
+
+        System.out.println("Loading 100000 mappings in bulk...");
+
+        String[] keys = new String[100000];
+        String[] values = new String[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "bulk key " + i;
+            values[i] = "bulk value " + i;
+        }
+        HashTables bulk = new HashTables(keys.length);
+        bulk.putAll(keys, values);
+
+        System.out.println("Bulk size: " + bulk.size());
+        System.out.println("Values of bulk keys 7 and 99999: " + String.join(", ", bulk.getAll(new String[] { "bulk key 7", "bulk key 99999" })));
+        System.out.println("Values ending with 0, counted in parallel: "
+                + bulk.parallelStream().filter(entry -> entry.getValue().endsWith("0")).count());
+
+        bulk.enableStats();
+        bulk.getAll(keys);
+        System.out.println("Bulk stats: " + bulk.statsSnapshot());
+
+        System.out.println("Counting words with a generic table in compact mode...");
+
+        GenericHashTables<String, Integer> counts = new GenericHashTables<>(16, true);
+        for (String word : "the cat and the dog and the bird".split(" ")) {
+            Integer current = counts.get(word);
+            counts.put(word, current == null ? 1 : current + 1);
+        }
+        System.out.println("Count of the: " + counts.get("the") + ", distinct words: " + counts.size()
+                + ", key slab bytes: " + counts.slabSize());
+
+        System.out.println("Filling a cache of 2 entries...");
+
+        HashTablesCache cache = new HashTablesCache(2, HashTablesCache.Weight.ENTRIES, HashTablesCache.EvictionPolicy.LRU);
+        cache.put("key 1", "value 1");
+        cache.put("key 2", "value 2");
+        cache.get("key 1");
+        cache.put("key 3", "value 3");
+
+        System.out.println("Cache contains key 2: " + (cache.get("key 2") != null));
+        System.out.println("Cache hits: " + cache.hitCount() + ", misses: " + cache.missCount()
+                + ", evictions: " + cache.evictionCount());
     }
 }
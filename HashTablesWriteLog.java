@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the updates made to a HashTables since its last snapshot.
+ * Every record is written with a single channel write, so it survives a crash of the process;
+ * call flush() to also force it to the disk. Each record is:
+ *
+ *   record length, CRC32 of the body, body: operation, key length, key, value length, value (UTF-8)
+ *
+ * On replay, a torn or corrupted record at the end of the log (from a crash in the middle of a write)
+ * is discarded and the log is truncated back to the last complete record.
+ *
+ * @author Rafael Souza
+ */
+class HashTablesWriteLog {
+
+    /**
+     * Receives the records found while replaying a log.
+     */
+    interface Replayer {
+        void put(String key, String value);
+        void remove(String key);
+    }
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final FileChannel channel;
+
+    private HashTablesWriteLog(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a log for appending, first replaying all of its complete records.
+     * @param file The log file, created if it does not exist.
+     * @param replayer Receives the records already in the log, in order.
+     * @return The opened log, positioned at its end.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    static HashTablesWriteLog open(File file, Replayer replayer) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid = 0;
+        long size = channel.size();
+
+        if (size > 0) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 9 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer body = buffer.slice().limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                byte operation = body.get();
+                String key = readString(body);
+                String value = readString(body);
+                if (operation == PUT) {
+                    replayer.put(key, value);
+                } else {
+                    replayer.remove(key);
+                }
+                buffer.position(buffer.position() + length);
+                valid = buffer.position();
+            }
+        }
+
+        if (valid < size) {
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        return new HashTablesWriteLog(channel);
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a put record.
+     * @param key The key that was set.
+     * @param value The value that was set.
+     * @throws IOException If the record cannot be written.
+     */
+    synchronized void appendPut(String key, String value) throws IOException {
+        append(PUT, key, value);
+    }
+
+    /**
+     * Appends a remove record.
+     * @param key The key that was removed.
+     * @throws IOException If the record cannot be written.
+     */
+    synchronized void appendRemove(String key) throws IOException {
+        append(REMOVE, key, "");
+    }
+
+    private void append(byte operation, String key, String value) throws IOException {
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = 9 + keyBytes.length + valueBytes.length;
+
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.position(8);
+        record.put(operation).putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    /**
+     * Discards every record, used once a snapshot containing them has been written.
+     * @throws IOException If the log cannot be truncated.
+     */
+    synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    /**
+     * Forces the records written so far to the disk.
+     * @throws IOException If the log cannot be forced.
+     */
+    synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Closes the log.
+     * @throws IOException If the log cannot be closed.
+     */
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+}
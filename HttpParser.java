@@ -0,0 +1,375 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Class that parses the HTTP requests received on one connection of WebServer, byte by byte, with a state
+ * machine. The bytes can arrive in any amount of pieces: each call to parse() goes on where the previous
+ * one stopped, so nothing is scanned twice, and stops right after the blank line that ends a header block,
+ * so the bytes of pipelined requests stay in the buffer for the next call.
+ *
+ * The header block is copied into an array owned by the parser, and the request line and the headers are
+ * only recorded as offsets in it: parsing allocates nothing once the array has grown to the size of the
+ * requests received, and the returned HttpRequest only builds the strings that are asked for.
+ * The size of a header block is limited by webserver.maxHeaderBytes (default 8192) and the amount of
+ * headers by webserver.maxHeaders (default 64).
+ *
+ * The server never uses a request body, but it must not take one for the next request. A Content-Length
+ * body of up to MAX_SKIPPED_BODY_BYTES is skipped by the calls that follow the request; a larger one, or a
+ * chunked one, is left unread and the connection is closed after the response, see HttpRequest.keepAlive().
+ * Any other transfer coding is answered with a 501, and a Content-Length that is invalid or comes with a
+ * Transfer-Encoding with a 400, both closing the connection.
+ */
+class HttpParser {
+
+    static final int MAX_HEADER_BYTES = Integer.getInteger("webserver.maxHeaderBytes", 8192);
+    static final int MAX_HEADERS = Integer.getInteger("webserver.maxHeaders", 64);
+    static final int MAX_SKIPPED_BODY_BYTES = 64 * 1024;
+
+    private static final int START = 0;
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int VERSION = 3;
+    private static final int REQUEST_LINE_END = 4;
+    private static final int HEADER_START = 5;
+    private static final int HEADER_NAME = 6;
+    private static final int VALUE_START = 7;
+    private static final int VALUE = 8;
+    private static final int HEADER_LINE_END = 9;
+    private static final int HEAD_END = 10;
+
+    // The characters allowed in methods and header names, the "tchar" of the specification
+    private static final boolean[] TOKEN = new boolean[128];
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            TOKEN[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            TOKEN[c] = true;
+            TOKEN[c - 'a' + 'A'] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TOKEN[c] = true;
+        }
+    }
+
+    /**
+     * Thrown when a request is malformed or too large, with the status of the error response to send.
+     */
+    static class ParseException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        ParseException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int status() {
+            return status;
+        }
+    }
+
+    // The header block being parsed, and the offsets of its parts; read by HttpRequest
+    byte[] bytes = new byte[512];
+    int length;
+    int methodEnd;
+    int targetStart;
+    int targetEnd;
+    int versionStart;
+    int versionEnd;
+    int headerCount;
+    int[] nameStarts = new int[16];
+    int[] nameEnds = new int[16];
+    int[] valueStarts = new int[16];
+    int[] valueEnds = new int[16];
+    boolean bodyUnread; // the body of the request is not skipped, so the connection must be closed after it
+
+    private int state = START;
+    private long bodyRemaining; // the bytes of the body of the last request still to skip
+    private final HttpRequest request = new HttpRequest(this);
+
+    /**
+     * @return True if part of a request, or of the body of the last one, has been received, false if the
+     *    parser is waiting for the first byte of the next one.
+     */
+    boolean inRequest() {
+        return state != START || bodyRemaining > 0;
+    }
+
+    /**
+     * Parses the bytes between the position and the limit of a buffer, advancing its position.
+     * @param buffer The bytes received, in read mode.
+     * @return The request, once its header block is complete, or null if all the bytes were consumed
+     *    and more are needed. The request is only valid until the next call.
+     * @throws ParseException If the request is malformed or too large. The parser must not be used again.
+     */
+    HttpRequest parse(ByteBuffer buffer) {
+
+        if (bodyRemaining > 0) {
+            int skipped = (int) Math.min(bodyRemaining, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            bodyRemaining -= skipped;
+        }
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            switch (state) {
+                case START:
+                    if (b == '\r' || b == '\n') {
+                        break; // blank lines are allowed before a request line
+                    }
+                    length = 0;
+                    headerCount = 0;
+                    bodyUnread = false;
+                    expectToken(b);
+                    append(b);
+                    state = METHOD;
+                    break;
+                case METHOD:
+                    if (b == ' ') {
+                        methodEnd = length;
+                        append(b);
+                        targetStart = length;
+                        state = TARGET;
+                    } else {
+                        expectToken(b);
+                        append(b);
+                    }
+                    break;
+                case TARGET:
+                    if (b == ' ' && length > targetStart) {
+                        targetEnd = length;
+                        append(b);
+                        versionStart = length;
+                        state = VERSION;
+                    } else {
+                        expectVisible(b);
+                        append(b);
+                    }
+                    break;
+                case VERSION:
+                    if (b == '\r' || b == '\n') {
+                        versionEnd = length;
+                        checkVersion();
+                        state = b == '\r' ? REQUEST_LINE_END : HEADER_START;
+                    } else {
+                        expectVisible(b);
+                        append(b);
+                    }
+                    break;
+                case REQUEST_LINE_END:
+                case HEADER_LINE_END:
+                    expectLineFeed(b);
+                    if (state == HEADER_LINE_END) {
+                        headerCount++;
+                    }
+                    state = HEADER_START;
+                    break;
+                case HEADER_START:
+                    if (b == '\r') {
+                        state = HEAD_END;
+                    } else if (b == '\n') {
+                        checkBody();
+                        state = START;
+                        return request;
+                    } else {
+                        // A space or a tab here would be an obsolete line folding, which is rejected
+                        expectToken(b);
+                        startHeader();
+                        append(b);
+                        state = HEADER_NAME;
+                    }
+                    break;
+                case HEADER_NAME:
+                    if (b == ':') {
+                        nameEnds[headerCount] = length;
+                        state = VALUE_START;
+                    } else {
+                        expectToken(b);
+                        append(b);
+                    }
+                    break;
+                case VALUE_START:
+                    if (b == ' ' || b == '\t') {
+                        break;
+                    }
+                    valueStarts[headerCount] = length;
+                    valueEnds[headerCount] = length;
+                    state = VALUE;
+                    value(b); // the first byte of the value, or the end of an empty one
+                    break;
+                case VALUE:
+                    value(b);
+                    break;
+                case HEAD_END:
+                    expectLineFeed(b);
+                    checkBody();
+                    state = START;
+                    return request;
+                default:
+                    throw new IllegalStateException("Unknown state: " + state);
+            }
+        }
+        return null;
+    }
+
+    private void value(byte b) {
+        if (b == '\r') {
+            state = HEADER_LINE_END;
+        } else if (b == '\n') {
+            headerCount++;
+            state = HEADER_START;
+        } else {
+            if (b != '\t' && (b >= 0 && b < ' ' || b == 0x7f)) {
+                throw new ParseException(400, "Control character in a header value.");
+            }
+            append(b);
+            if (b != ' ' && b != '\t') {
+                valueEnds[headerCount] = length; // trailing spaces are not part of the value
+            }
+        }
+    }
+
+    private void append(byte b) {
+        if (length == MAX_HEADER_BYTES) {
+            if (state <= TARGET) {
+                throw new ParseException(414, "Request target longer than " + MAX_HEADER_BYTES + " bytes.");
+            }
+            throw new ParseException(431, "Header block longer than " + MAX_HEADER_BYTES + " bytes.");
+        }
+        if (length == bytes.length) {
+            byte[] larger = new byte[Math.min(bytes.length * 2, MAX_HEADER_BYTES)];
+            System.arraycopy(bytes, 0, larger, 0, length);
+            bytes = larger;
+        }
+        bytes[length++] = b;
+    }
+
+    private void startHeader() {
+        if (headerCount == MAX_HEADERS) {
+            throw new ParseException(431, "More than " + MAX_HEADERS + " headers.");
+        }
+        if (headerCount == nameStarts.length) {
+            int capacity = Math.min(nameStarts.length * 2, MAX_HEADERS);
+            nameStarts = Arrays.copyOf(nameStarts, capacity);
+            nameEnds = Arrays.copyOf(nameEnds, capacity);
+            valueStarts = Arrays.copyOf(valueStarts, capacity);
+            valueEnds = Arrays.copyOf(valueEnds, capacity);
+        }
+        nameStarts[headerCount] = length;
+    }
+
+    /**
+     * Looks at the headers announcing a body, once the header block is complete, to skip the body or mark
+     * it as unread.
+     */
+    private void checkBody() {
+        long contentLength = -1;
+        boolean chunked = false;
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(nameStarts[i], nameEnds[i], "Content-Length")) {
+                long value = parseLength(valueStarts[i], valueEnds[i]);
+                if (value < 0 || (contentLength >= 0 && value != contentLength)) {
+                    throw new ParseException(400, "Invalid Content-Length.");
+                }
+                contentLength = value;
+            } else if (equalsIgnoreCase(nameStarts[i], nameEnds[i], "Transfer-Encoding")) {
+                if (chunked || !equalsIgnoreCase(valueStarts[i], valueEnds[i], "chunked")) {
+                    throw new ParseException(501, "Unsupported transfer coding.");
+                }
+                chunked = true;
+            }
+        }
+        if (chunked && contentLength >= 0) {
+            throw new ParseException(400, "Both Content-Length and Transfer-Encoding.");
+        }
+        if (chunked || contentLength > MAX_SKIPPED_BODY_BYTES) {
+            bodyUnread = true;
+        } else if (contentLength > 0) {
+            bodyRemaining = contentLength;
+        }
+    }
+
+    /**
+     * @return The decimal number between the offsets, or -1 if they are not all digits or there are too many.
+     */
+    private long parseLength(int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private void checkVersion() {
+        if (versionEnd - versionStart != 8 || !matches(versionStart, "HTTP/")) {
+            throw new ParseException(400, "Malformed HTTP version.");
+        }
+        byte major = bytes[versionStart + 5];
+        byte minor = bytes[versionStart + 7];
+        if (bytes[versionStart + 6] != '.' || major < '0' || major > '9' || minor < '0' || minor > '9') {
+            throw new ParseException(400, "Malformed HTTP version.");
+        }
+        if (major != '1') {
+            throw new ParseException(505, "Unsupported HTTP version.");
+        }
+    }
+
+    /**
+     * @return True if the bytes at the offset are the characters of the text, exactly.
+     */
+    boolean matches(int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (bytes[offset + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the bytes between the offsets are the characters of the text, ignoring the case of letters.
+     */
+    boolean equalsIgnoreCase(int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int b = bytes[start + i];
+            int c = text.charAt(i);
+            if (b != c) {
+                int lower = b | 0x20;
+                if (lower != (c | 0x20) || lower < 'a' || lower > 'z') {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void expectToken(byte b) {
+        if (b < 0 || !TOKEN[b]) {
+            throw new ParseException(400, "Unexpected character " + (b & 0xff) + " in a token.");
+        }
+    }
+
+    private static void expectVisible(byte b) {
+        if (b >= 0 && b <= ' ' || b == 0x7f) {
+            throw new ParseException(400, "Unexpected character " + (b & 0xff) + " in the request line.");
+        }
+    }
+
+    private static void expectLineFeed(byte b) {
+        if (b != '\n') {
+            throw new ParseException(400, "Carriage return not followed by a line feed.");
+        }
+    }
+}
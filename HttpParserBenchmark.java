@@ -0,0 +1,149 @@
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * This class measures, in isolation, the three ways WebServer has parsed requests: the original Scanner
+ * reading lines and splitting them, the parse of a whole header block into strings used by the first
+ * version of the NIO engine, and HttpParser. Each one parses the same request of a browser, with a dozen
+ * headers, and reads its method, target and Connection header, as the server does. The time and the bytes
+ * allocated per request are measured after a warm-up, on the current thread.
+ *
+ * Usage: java HttpParserBenchmark [requests]
+ * The default is 2,000,000 requests per parser.
+ *
+ * The output obtained on a single-core sandbox is below:
+ *
+ * Request of 594 bytes, 2000000 times
+ * Scanner lines:          17366.9 ns/request,    32.6 MB/s,  33632 bytes allocated/request
+ * Split header block:     11366.2 ns/request,    49.8 MB/s,   6448 bytes allocated/request
+ * HttpParser:              4716.2 ns/request,   120.1 MB/s,     72 bytes allocated/request
+ *
+ * @author Rafael Souza
+ */
+public class HttpParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /assets/css/site.css?v=1718 HTTP/1.1\r\n"
+            + "Host: localhost:50505\r\n"
+            + "Connection: keep-alive\r\n"
+            + "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n"
+            + "sec-ch-ua-mobile: ?0\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r\n"
+            + "sec-ch-ua-platform: \"Linux\"\r\n"
+            + "Accept: text/css,*/*;q=0.1\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Mode: no-cors\r\n"
+            + "Sec-Fetch-Dest: style\r\n"
+            + "Referer: http://localhost:50505/index.html\r\n"
+            + "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "If-None-Match: \"5406-1a152cae332\"\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static int sink;
+
+    /**
+     * Main function, that will execute the benchmark.
+     *
+     * @param args The amount of requests to parse with each parser.
+     */
+    public static void main(String[] args) {
+
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        System.out.println("Request of " + REQUEST.length + " bytes, " + requests + " times");
+        for (int parser = 0; parser < 3; parser++) {
+            run(parser, requests / 10); // warm up
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long startTime = System.nanoTime();
+            // The Scanner is slow enough that a smaller sample of it is representative
+            int count = parser == 0 ? requests / 10 : requests;
+            run(parser, count);
+            long runTime = System.nanoTime() - startTime;
+            long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            System.out.printf("%-22s %8.1f ns/request, %7.1f MB/s, %6d bytes allocated/request%n",
+                    new String[] { "Scanner lines:", "Split header block:", "HttpParser:" }[parser],
+                    (double) runTime / count, (double) REQUEST.length * count / (1024 * 1024) / (runTime / 1e9),
+                    allocated / count);
+        }
+    }
+
+    private static void run(int parser, int count) {
+        if (parser == 0) {
+            for (int i = 0; i < count; i++) {
+                parseWithScanner();
+            }
+        } else if (parser == 1) {
+            ByteBuffer buffer = ByteBuffer.wrap(REQUEST);
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                parseBySplitting(buffer);
+            }
+        } else {
+            HttpParser httpParser = new HttpParser();
+            ByteBuffer buffer = ByteBuffer.wrap(REQUEST);
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                HttpRequest request = httpParser.parse(buffer);
+                sink += request.method().length() + request.target().length() + (request.keepAlive() ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * The parsing of the blocking engine before HttpParser: one Scanner per connection, reading lines.
+     */
+    private static void parseWithScanner() {
+        Scanner in = new Scanner(new ByteArrayInputStream(REQUEST), "ISO-8859-1");
+        String[] request = in.nextLine().split(" ");
+        String connection = null;
+        while (in.hasNextLine()) {
+            String header = in.nextLine();
+            if (header.isEmpty()) {
+                break;
+            }
+            int colon = header.indexOf(':');
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Connection")) {
+                connection = value;
+            }
+        }
+        sink += request[0].length() + request[1].length() + (connection != null ? 1 : 0);
+    }
+
+    /**
+     * The parsing of the NIO engine before HttpParser: search for the end of the header block, then decode
+     * it and split it into lines and headers.
+     */
+    private static void parseBySplitting(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = -1;
+        for (int i = start; i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        byte[] head = new byte[end - start];
+        buffer.get(head);
+        buffer.position(end + 4);
+
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        String[] names = new String[lines.length - 1];
+        String[] values = new String[lines.length - 1];
+        String connection = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            names[i - 1] = lines[i].substring(0, colon).trim();
+            values[i - 1] = lines[i].substring(colon + 1).trim();
+            if (names[i - 1].equalsIgnoreCase("Connection")) {
+                connection = values[i - 1];
+            }
+        }
+        sink += requestLine[0].length() + requestLine[1].length() + (connection != null ? 1 : 0);
+    }
+}
@@ -0,0 +1,104 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that holds an HTTP request received by WebServer: its request line and its headers.
+ * A request is a view over the header block held by the HttpParser of its connection, which reuses it
+ * for every request: it is only valid until the parser is called again, and the strings it returns are
+ * built when they are asked for.
+ */
+class HttpRequest {
+
+    private final HttpParser parser;
+
+    HttpRequest(HttpParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @return The method; "GET" and "HEAD" are returned without building a string.
+     */
+    String method() {
+        int length = parser.methodEnd;
+        if (length == 3 && parser.matches(0, "GET")) {
+            return "GET";
+        } else if (length == 4 && parser.matches(0, "HEAD")) {
+            return "HEAD";
+        }
+        return text(0, length);
+    }
+
+    String target() {
+        return text(parser.targetStart, parser.targetEnd);
+    }
+
+    /**
+     * Tells whether the target is exactly the given one, without building any string.
+     * @param target The target to compare with.
+     * @return True if it is the target of the request.
+     */
+    boolean hasTarget(String target) {
+        return parser.targetEnd - parser.targetStart == target.length() && parser.matches(parser.targetStart, target);
+    }
+
+    /**
+     * @return The version, which the parser has checked to be HTTP/1.x.
+     */
+    String version() {
+        if (parser.matches(parser.versionStart, "HTTP/1.1")) {
+            return "HTTP/1.1";
+        } else if (parser.matches(parser.versionStart, "HTTP/1.0")) {
+            return "HTTP/1.0";
+        }
+        return text(parser.versionStart, parser.versionEnd);
+    }
+
+    /**
+     * Tells whether the client asked to keep the connection open after this request. HTTP/1.1 connections
+     * are persistent unless the client sends "Connection: close"; HTTP/1.0 ones only with "Connection: keep-alive".
+     * Neither is when the request has a body that the parser does not skip.
+     * @return True if the connection may be reused for another request.
+     */
+    boolean keepAlive() {
+        if (parser.bodyUnread) {
+            return false;
+        }
+        if (parser.matches(parser.versionStart, "HTTP/1.1")) {
+            return !hasHeader("Connection", "close");
+        }
+        return hasHeader("Connection", "keep-alive");
+    }
+
+    /**
+     * Gets the value of a header, ignoring the case of its name.
+     * @param name The name of the header.
+     * @return The value of the first header with that name, or null if there is none.
+     */
+    String header(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : text(parser.valueStarts[index], parser.valueEnds[index]);
+    }
+
+    /**
+     * Tells whether a header has a value, ignoring the case of both, without building any string.
+     * @param name The name of the header.
+     * @param value The value to look for.
+     * @return True if the first header with that name has that value.
+     */
+    boolean hasHeader(String name, String value) {
+        int index = indexOf(name);
+        return index >= 0 && parser.equalsIgnoreCase(parser.valueStarts[index], parser.valueEnds[index], value);
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < parser.headerCount; i++) {
+            if (parser.equalsIgnoreCase(parser.nameStarts[i], parser.nameEnds[i], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int start, int end) {
+        return new String(parser.bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Class that holds an HTTP response of WebServer, ready to be written by either of its engines:
+ * the status line and headers already encoded, followed by a body that is either held in memory
+ * or read from a region of a file while it is sent.
+ *
+ * The 200 responses also keep what their headers describe (type, encoding and validators), so the
+ * 206, 304 and 416 responses to conditional and range requests can be derived from them.
+ *
+ * The status lines and the Connection headers are encoded once, and the error responses are built once,
+ * so they are shared by all the requests. A body held in memory is written together with the head, with a
+ * single gathering write.
+ */
+class HttpResponse {
+
+    /**
+     * The format of the dates in HTTP headers, which always have two digits for the day.
+     */
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final byte[] OK = encodeBytes("HTTP/1.1 200 OK\r\n");
+    private static final byte[] PARTIAL_CONTENT = encodeBytes("HTTP/1.1 206 Partial Content\r\n");
+    private static final byte[] MOVED_PERMANENTLY = encodeBytes("HTTP/1.1 301 Moved Permanently\r\n");
+    private static final byte[] NOT_MODIFIED = encodeBytes("HTTP/1.1 304 Not Modified\r\n");
+    private static final byte[] RANGE_NOT_SATISFIABLE = encodeBytes("HTTP/1.1 416 Range Not Satisfiable\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = encodeBytes("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = encodeBytes("Connection: close\r\n");
+
+    // The error responses, by status - 400, without and with keep-alive
+    private static final int[] ERROR_STATUSES = { 400, 403, 404, 408, 414, 431, 501, 503, 505 };
+    private static final HttpResponse[][] ERRORS = new HttpResponse[2][106];
+    static {
+        for (int status : ERROR_STATUSES) {
+            ERRORS[0][status - 400] = buildError(status, false);
+            ERRORS[1][status - 400] = buildError(status, true);
+        }
+    }
+
+    private final int status;
+    private final ByteBuffer head;
+    private final ByteBuffer body;
+    private final File file;
+    private final long fileOffset;
+    private final long fileLength;
+    private final boolean keepAlive;
+
+    private final String mimeType;
+    private final String contentEncoding;
+    private final String etag;
+    private final long lastModified;
+
+    private HttpResponse(int status, ByteBuffer head, ByteBuffer body, File file, long fileOffset, long fileLength,
+            boolean keepAlive, String mimeType, String contentEncoding, String etag, long lastModified) {
+        this.status = status;
+        this.head = head;
+        this.body = body;
+        this.file = file;
+        this.fileOffset = fileOffset;
+        this.fileLength = fileLength;
+        this.keepAlive = keepAlive;
+        this.mimeType = mimeType;
+        this.contentEncoding = contentEncoding;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Creates a 200 response that sends a file.
+     * @param file The file to send, which must exist and be readable.
+     * @param mimeType The content type of the file.
+     * @param contentEncoding The encoding the file is stored in, like "gzip"; "identity" if it is not encoded
+     *    but could have been, depending on the Accept-Encoding of the request; or null if it is never encoded.
+     * @param keepAlive Whether the connection stays open for another request after this response.
+     * @return The response.
+     */
+    static HttpResponse file(File file, String mimeType, String contentEncoding, boolean keepAlive) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = etag(length, lastModified, contentEncoding);
+        ByteBuffer head = okHead(OK, length, null, mimeType, contentEncoding, etag, lastModified, keepAlive);
+        return new HttpResponse(200, head, null, file, 0, length, keepAlive, mimeType, contentEncoding, etag, lastModified);
+    }
+
+    /**
+     * Creates a 200 response whose body is held in memory. The body is shared, not copied, so the same
+     * bytes can back any number of responses.
+     * @param body The body, between its position and its limit.
+     * @param mimeType The content type of the body.
+     * @param contentEncoding The encoding of the body, as for file().
+     * @param etag The entity tag of the body, see etag().
+     * @param lastModified When the file the body comes from was last modified, in milliseconds since the epoch.
+     * @param keepAlive Whether the connection stays open for another request after this response.
+     * @return The response.
+     */
+    static HttpResponse content(ByteBuffer body, String mimeType, String contentEncoding, String etag, long lastModified,
+            boolean keepAlive) {
+        ByteBuffer head = okHead(OK, body.remaining(), null, mimeType, contentEncoding, etag, lastModified, keepAlive);
+        return new HttpResponse(200, head, body.duplicate(), null, 0, 0, keepAlive, mimeType, contentEncoding, etag,
+                lastModified);
+    }
+
+    /**
+     * Creates a 200 response with a text generated for this request only, which caches must not store.
+     * @param text The body.
+     * @param mimeType The content type of the body.
+     * @param keepAlive Whether the connection stays open for another request after this response.
+     * @return The response.
+     */
+    static HttpResponse text(String text, String mimeType, boolean keepAlive) {
+        ByteBuffer body = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        String headers = "Content-Length: " + body.remaining() + "\r\n"
+                + "Content-Type: " + mimeType + "\r\n"
+                + "Cache-Control: no-store\r\n"
+                + "\r\n";
+        return new HttpResponse(200, head(OK, keepAlive, headers), body, null, 0, 0, keepAlive, mimeType, null, null, 0);
+    }
+
+    /**
+     * Creates a 301 response that sends the client to another target of the server, like the one of a
+     * directory with its trailing slash, so the relative links of its listing resolve inside it.
+     * @param location The target to go to, as it is sent in the Location header.
+     * @param keepAlive Whether the connection stays open for another request after this response.
+     * @return The response.
+     */
+    static HttpResponse redirect(String location, boolean keepAlive) {
+        ByteBuffer body = encode("<html><head><title>Moved Permanently</title></head><body><h2>Moved Permanently</h2>"
+                + "<p>The resource that you requested has moved to another address.</p></body></html>");
+        String headers = "Location: " + location + "\r\n"
+                + "Content-Length: " + body.remaining() + "\r\n"
+                + "Content-Type: text/html\r\n"
+                + "\r\n";
+        return new HttpResponse(301, head(MOVED_PERMANENTLY, keepAlive, headers), body, null, 0, 0, keepAlive,
+                "text/html", null, null, 0);
+    }
+
+    /**
+     * Builds a strong entity tag for a file from its length and modification time, like most servers do, so it
+     * is computed without reading the file. Each encoding of the file gets its own tag.
+     * @param length The length of the file.
+     * @param lastModified The modification time of the file.
+     * @param contentEncoding The encoding of the response, as for file().
+     * @return The tag, quotes included.
+     */
+    static String etag(long length, long lastModified, String contentEncoding) {
+        String tag = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+        if (contentEncoding != null && !contentEncoding.equals("identity")) {
+            tag += "-" + contentEncoding;
+        }
+        return "\"" + tag + "\"";
+    }
+
+    private static ByteBuffer okHead(byte[] statusLine, long length, String contentRange, String mimeType,
+            String contentEncoding, String etag, long lastModified, boolean keepAlive) {
+        StringBuilder headers = new StringBuilder(256)
+                .append("Content-Length: ").append(length).append("\r\n")
+                .append("Content-Type: ").append(mimeType).append("\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        if (contentEncoding != null) {
+            if (!contentEncoding.equals("identity")) {
+                headers.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+            }
+            // Tells caches that the body depends on the Accept-Encoding of the request
+            headers.append("Vary: Accept-Encoding\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n")
+                .append("ETag: ").append(etag).append("\r\n")
+                .append("Last-Modified: ").append(HTTP_DATE.format(Instant.ofEpochMilli(lastModified))).append("\r\n");
+        return head(statusLine, keepAlive, headers.append("\r\n"));
+    }
+
+    /**
+     * Encodes a head from its pre-encoded status line and Connection header, followed by the other headers.
+     * @param statusLine The encoded status line.
+     * @param keepAlive Whether the connection stays open after the response.
+     * @param headers The other headers, followed by the empty line that ends the head; only ISO-8859-1.
+     * @return The encoded head.
+     */
+    private static ByteBuffer head(byte[] statusLine, boolean keepAlive, CharSequence headers) {
+        byte[] connection = keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE;
+        byte[] head = new byte[statusLine.length + connection.length + headers.length()];
+        System.arraycopy(statusLine, 0, head, 0, statusLine.length);
+        System.arraycopy(connection, 0, head, statusLine.length, connection.length);
+        int offset = statusLine.length + connection.length;
+        for (int i = 0; i < headers.length(); i++) {
+            head[offset + i] = (byte) headers.charAt(i);
+        }
+        return ByteBuffer.wrap(head);
+    }
+
+    /**
+     * Derives, from a 200 response, the 304 response telling the client that its copy is still valid.
+     * @return The response, with the same validators and no body.
+     */
+    HttpResponse notModified() {
+        String headers = (contentEncoding != null ? "Vary: Accept-Encoding\r\n" : "")
+                + "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + HTTP_DATE.format(Instant.ofEpochMilli(lastModified)) + "\r\n"
+                + "\r\n";
+        return new HttpResponse(304, head(NOT_MODIFIED, keepAlive, headers), EMPTY, null, 0, 0, keepAlive, mimeType,
+                contentEncoding, etag, lastModified);
+    }
+
+    /**
+     * Derives, from a 200 response, the 206 response that sends a range of its body. A file body is still
+     * sent straight from the file, starting at the offset of the range.
+     * @param first The offset of the first byte of the range.
+     * @param last The offset of the last byte of the range, included.
+     * @return The response.
+     */
+    HttpResponse partial(long first, long last) {
+        long length = last - first + 1;
+        String contentRange = "bytes " + first + "-" + last + "/" + length();
+        ByteBuffer head = okHead(PARTIAL_CONTENT, length, contentRange, mimeType, contentEncoding, etag, lastModified,
+                keepAlive);
+        if (body != null) {
+            ByteBuffer range = body.duplicate();
+            range.position(range.position() + (int) first);
+            range.limit(range.position() + (int) length);
+            return new HttpResponse(206, head, range, null, 0, 0, keepAlive, mimeType, contentEncoding, etag, lastModified);
+        }
+        return new HttpResponse(206, head, null, file, fileOffset + first, length, keepAlive, mimeType, contentEncoding,
+                etag, lastModified);
+    }
+
+    /**
+     * Derives, from a 200 response, the 416 response to a range that starts after the end of its body.
+     * @return The response, with no body.
+     */
+    HttpResponse rangeNotSatisfiable() {
+        String headers = "Content-Length: 0\r\n"
+                + "Content-Range: bytes */" + length() + "\r\n"
+                + "\r\n";
+        return new HttpResponse(416, head(RANGE_NOT_SATISFIABLE, keepAlive, headers), EMPTY, null, 0, 0, keepAlive,
+                mimeType, contentEncoding, etag, lastModified);
+    }
+
+    /**
+     * Derives the response to a HEAD request from the response to the same GET request: the same status
+     * line and headers, Content-Length included, without the body.
+     * @return The response.
+     */
+    HttpResponse withoutBody() {
+        return new HttpResponse(status, head, EMPTY, null, 0, 0, keepAlive, mimeType, contentEncoding, etag, lastModified);
+    }
+
+    /**
+     * Gets an error response, with a small HTML page explaining the error.
+     * @param status One of 400, 403, 404, 408, 414, 431, 501, 503 or 505.
+     * @param keepAlive Whether the connection stays open for another request after this response. It is
+     *    ignored for 400, 414, 431 and 505, since the next request cannot be found after a rejected one,
+     *    and for 408 and 503, which are sent to get rid of the connection.
+     * @return The response, which is shared.
+     * @throws IllegalArgumentException If the status is not one of the supported errors.
+     */
+    static HttpResponse error(int status, boolean keepAlive) {
+        HttpResponse response = status >= 400 && status < 506 ? ERRORS[keepAlive ? 1 : 0][status - 400] : null;
+        if (response == null) {
+            throw new IllegalArgumentException("Unsupported error code: " + status);
+        }
+        return response;
+    }
+
+    private static HttpResponse buildError(int status, boolean keepAlive) {
+        String reason;
+        String message;
+        switch (status) {
+            case 400:
+                reason = "Bad Request";
+                message = "The request could not be understood by the server.";
+                keepAlive = false;
+                break;
+            case 403:
+                reason = "Forbidden";
+                message = "The resource that you requested cannot be read by you.";
+                break;
+            case 404:
+                reason = "Not Found";
+                message = "The resource that you requested does not exist on this server.";
+                break;
+            case 408:
+                reason = "Request Timeout";
+                message = "The request took too long to arrive.";
+                keepAlive = false;
+                break;
+            case 414:
+                reason = "URI Too Long";
+                message = "The address of the resource that you requested is too long.";
+                keepAlive = false;
+                break;
+            case 431:
+                reason = "Request Header Fields Too Large";
+                message = "The headers of the request are too large.";
+                keepAlive = false;
+                break;
+            case 501:
+                reason = "Not Implemented";
+                message = "The requested method is not implemented.";
+                break;
+            case 503:
+                reason = "Service Unavailable";
+                message = "The server is too busy to answer your request. Please try again later.";
+                keepAlive = false;
+                break;
+            case 505:
+                reason = "HTTP Version Not Supported";
+                message = "The HTTP version of the request is not supported.";
+                keepAlive = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported error code: " + status);
+        }
+        ByteBuffer body = encode("<html><head><title>Error</title></head><body><h2>Error: " + status + " " + reason
+                + "</h2><p>" + message + "</p></body></html>");
+        String headers = "Content-Length: " + body.remaining() + "\r\n"
+                + "Content-Type: text/html\r\n"
+                + (status == 503 ? "Retry-After: 1\r\n" : "")
+                + "\r\n";
+        byte[] statusLine = encodeBytes("HTTP/1.1 " + status + " " + reason + "\r\n");
+        return new HttpResponse(status, head(statusLine, keepAlive, headers), body, null, 0, 0, keepAlive, "text/html",
+                null, null, 0);
+    }
+
+    private static ByteBuffer encode(String text) {
+        return ByteBuffer.wrap(encodeBytes(text));
+    }
+
+    private static byte[] encodeBytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    int status() {
+        return status;
+    }
+
+    /**
+     * @return True if the connection stays open after this response, false if it must be closed.
+     */
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return The entity tag of the body, or null for error responses.
+     */
+    String etag() {
+        return etag;
+    }
+
+    /**
+     * @return When the file the body comes from was last modified, in milliseconds since the epoch.
+     */
+    long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The length of the body.
+     */
+    long length() {
+        return body != null ? body.remaining() : fileLength;
+    }
+
+    /**
+     * @return The length of the encoded status line and headers.
+     */
+    int headLength() {
+        return head.remaining();
+    }
+
+    /**
+     * @return A new buffer over the encoded status line and headers.
+     */
+    ByteBuffer head() {
+        return head.duplicate();
+    }
+
+    /**
+     * @return A new buffer over the body held in memory, or null if the body is a file.
+     */
+    ByteBuffer body() {
+        return body == null ? null : body.duplicate();
+    }
+
+    /**
+     * @return The file to send the body from, or null if the body is held in memory.
+     */
+    File file() {
+        return file;
+    }
+
+    /**
+     * @return The offset in the file of the first byte of the body.
+     */
+    long fileOffset() {
+        return fileOffset;
+    }
+
+    /**
+     * Writes the whole response to a blocking channel. A body held in memory is written with the head in a
+     * single gathering write, when the channel supports it, so a small response is sent in one packet.
+     * @param out The channel to write to.
+     * @throws IOException If the response cannot be written.
+     */
+    void writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer headBytes = head();
+        if (body != null && out instanceof GatheringByteChannel) {
+            ByteBuffer bodyBytes = body();
+            ByteBuffer[] buffers = { headBytes, bodyBytes };
+            while (headBytes.hasRemaining() || bodyBytes.hasRemaining()) {
+                ((GatheringByteChannel) out).write(buffers);
+            }
+            return;
+        }
+        while (headBytes.hasRemaining()) {
+            out.write(headBytes);
+        }
+        if (body != null) {
+            ByteBuffer bodyBytes = body();
+            while (bodyBytes.hasRemaining()) {
+                out.write(bodyBytes);
+            }
+        } else {
+            WebServer.sendFile(file, fileOffset, fileLength, out);
+        }
+    }
+}
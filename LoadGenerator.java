@@ -0,0 +1,273 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Local load generator for WebServer. It starts a number of concurrent clients, each one sending
+ * GET requests for a mix of paths, and reports the throughput, the responses by status class and
+ * a histogram of the latencies of the requests, and the rate at which connections were opened.
+ * In "close" mode every request is sent over a new connection, which is read until the server closes it.
+ * In "keep-alive" mode every client reuses its connection, framing the responses by their Content-Length,
+ * and only opens a new one when the server closes it.
+ *
+ * The mix is a comma-separated list of paths, each with an optional weight, like "/index.html:3,/big.bin:1".
+ * Every client picks its paths with its own random generator, seeded with its index, so two runs with the
+ * same arguments send the same requests in the same order.
+ *
+ * By default every client sends its next request as soon as it gets the previous response. Such a closed
+ * loop suffers from coordinated omission: while the server stalls, the clients stop sending, so the stall
+ * is recorded once instead of once per request that should have been sent, and the high percentiles look
+ * far better than they are. With -Dloadgen.rate set, the clients follow a fixed schedule instead, spread
+ * evenly between them, and the latency of a request is measured from the time it was scheduled to be sent,
+ * so the requests delayed by a stall account for it, as wrk2 does. The service time, measured from when the
+ * request was actually sent, is reported too, to show how much the correction changes.
+ *
+ * Usage: java [-Dloadgen.rate=requestsPerSecond] [-Dloadgen.warmup=requestsPerClient] LoadGenerator
+ *    [host] [port] [mix] [clients] [requestsPerClient] [close|keep-alive]
+ * The defaults are localhost, 50505, /README.md, 100 clients, 100 requests per client and close, with no
+ * rate (a closed loop), and a warm-up of a tenth of the requests of each client, which are not measured.
+ *
+ * @author Rafael Souza
+ */
+public class LoadGenerator {
+
+    private static final double RATE = Double.parseDouble(System.getProperty("loadgen.rate", "0"));
+
+    /**
+     * Main function, that will run the clients and print the results.
+     *
+     * @param args Host, port, mix of paths, amount of clients and of requests per client, and mode, all optional.
+     * @throws InterruptedException If interrupted while waiting for the clients.
+     */
+    public static void main(String[] args) throws InterruptedException {
+
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 50505;
+        String mix = args.length > 2 ? args[2] : "/README.md";
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int requestsPerClient = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        boolean keepAlive = args.length > 5 && args[5].equals("keep-alive");
+        int warmup = Integer.getInteger("loadgen.warmup", requestsPerClient / 10);
+
+        String[] entries = mix.split(",");
+        byte[][] requests = new byte[entries.length][];
+        int[] cumulativeWeights = new int[entries.length];
+        int totalWeight = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int colon = entry.lastIndexOf(':');
+            String path = colon > 0 ? entry.substring(0, colon) : entry;
+            totalWeight += colon > 0 ? Integer.parseInt(entry.substring(colon + 1)) : 1;
+            cumulativeWeights[i] = totalWeight;
+            requests[i] = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+                    + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        int weights = totalWeight;
+
+        // Each client sends one request every interval, the clients being shifted by interval / clients
+        long interval = RATE > 0 ? (long) (clients * 1e9 / RATE) : 0;
+        LatencyHistogram latencies = new LatencyHistogram();
+        LatencyHistogram serviceTimes = new LatencyHistogram();
+        AtomicLongArray statusClasses = new AtomicLongArray(6);
+        AtomicLong errors = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong connections = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        long[] startTime = new long[1];
+
+        for (int c = 0; c < clients; c++) {
+            int clientIndex = c;
+            Thread client = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                Random random = new Random(clientIndex);
+                Socket socket = null;
+                try {
+                    start.await();
+                    long firstSend = startTime[0] + interval * clientIndex / clients;
+                    for (int r = 0; r < warmup + requestsPerClient; r++) {
+                        boolean measured = r >= warmup;
+                        long scheduled = firstSend + interval * r;
+                        if (interval > 0) {
+                            long wait;
+                            while ((wait = scheduled - System.nanoTime()) > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+                        }
+                        int pick = random.nextInt(weights);
+                        int index = 0;
+                        while (cumulativeWeights[index] <= pick) {
+                            index++;
+                        }
+                        long sent = System.nanoTime();
+                        int status = 0;
+                        try {
+                            if (socket == null) {
+                                socket = new Socket(host, port);
+                                if (measured) {
+                                    connections.incrementAndGet();
+                                }
+                            }
+                            OutputStream out = socket.getOutputStream();
+                            out.write(requests[index]);
+                            out.flush();
+                            if (keepAlive) {
+                                InputStream in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+                                long result = readResponse(in, buffer, measured ? bytes : null);
+                                status = (int) Math.abs(result);
+                                if (result < 0) {
+                                    socket.close();
+                                    socket = null;
+                                }
+                            } else {
+                                InputStream in = socket.getInputStream();
+                                int read;
+                                int offset = 0; // the start of the response is kept until its status is read
+                                boolean parsed = false;
+                                while ((read = in.read(buffer, offset, buffer.length - offset)) > 0) {
+                                    if (!parsed && offset + read >= 12) {
+                                        status = parseStatus(buffer);
+                                        parsed = true;
+                                    }
+                                    offset = parsed ? 0 : offset + read;
+                                    if (measured) {
+                                        bytes.addAndGet(read);
+                                    }
+                                }
+                                socket.close();
+                                socket = null;
+                            }
+                        } catch (Exception e) {
+                            if (measured) {
+                                errors.incrementAndGet();
+                            }
+                            closeQuietly(socket);
+                            socket = null;
+                        }
+                        long end = System.nanoTime();
+                        if (measured) {
+                            latencies.record((end - (interval > 0 ? scheduled : sent)) / 1000);
+                            serviceTimes.record((end - sent) / 1000);
+                            statusClasses.incrementAndGet(status >= 100 && status < 600 ? status / 100 : 0);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    closeQuietly(socket);
+                    done.countDown();
+                }
+            });
+            client.setDaemon(true);
+            client.start();
+        }
+
+        startTime[0] = System.nanoTime() + 10_000_000L; // lets every client reach the schedule in time
+        start.countDown();
+        done.await();
+        long runTime = System.nanoTime() - startTime[0];
+        long measuredTime = runTime * requestsPerClient / Math.max(1, warmup + requestsPerClient);
+
+        System.out.printf("Mix: %s, %d clients, %d requests per client (+%d warm-up), %s, %s%n", mix, clients,
+                requestsPerClient, warmup, keepAlive ? "keep-alive" : "close",
+                RATE > 0 ? "rate " + RATE + " requests/s" : "closed loop");
+        System.out.printf("Requests: %d, errors: %d, bytes received: %d%n", latencies.count(), errors.get(), bytes.get());
+        System.out.printf("Responses: 2xx %d, 3xx %d, 4xx %d, 5xx %d%n", statusClasses.get(2), statusClasses.get(3),
+                statusClasses.get(4), statusClasses.get(5));
+        System.out.printf("Throughput: %.1f requests/s, %.1f connections/s%n", latencies.count() / (measuredTime / 1e9),
+                connections.get() / (measuredTime / 1e9));
+        print(RATE > 0 ? "Latency (corrected)" : "Latency (uncorrected)", latencies);
+        if (RATE > 0) {
+            print("Service time", serviceTimes);
+        }
+    }
+
+    private static void print(String title, LatencyHistogram histogram) {
+        System.out.printf("%-22s p50: %8.2f ms, p90: %8.2f ms, p99: %8.2f ms, p999: %8.2f ms, max: %8.2f ms%n",
+                title + ":", histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3,
+                histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+    }
+
+    /**
+     * Reads one response, framed by its Content-Length, leaving the connection ready for the next one.
+     * The responses are requested one at a time, so nothing of the next response is ever buffered.
+     * @param bytes Counts the bytes read, or null if they are not counted.
+     * @return The status of the response, negated if the server announced it closes the connection after it.
+     */
+    private static long readResponse(InputStream in, byte[] buffer, AtomicLong bytes) throws IOException {
+
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed in the middle of a response.");
+            }
+            head.append((char) b);
+        }
+        if (bytes != null) {
+            bytes.addAndGet(head.length());
+        }
+
+        String[] lines = head.toString().split("\r\n");
+        String[] statusLine = lines[0].split(" ");
+        int status = statusLine.length > 1 ? Integer.parseInt(statusLine[1]) : 0;
+        long contentLength = 0;
+        boolean close = false;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    close = value.equalsIgnoreCase("close");
+                }
+            }
+        }
+
+        while (contentLength > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, contentLength));
+            if (read < 0) {
+                throw new EOFException("Connection closed in the middle of a response.");
+            }
+            contentLength -= read;
+            if (bytes != null) {
+                bytes.addAndGet(read);
+            }
+        }
+        return close ? -status : status;
+    }
+
+    /**
+     * @return The status in the status line at the start of the buffer, like "HTTP/1.1 200 OK", or 0.
+     */
+    private static int parseStatus(byte[] buffer) {
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') {
+                return 0;
+            }
+            status = status * 10 + buffer[i] - '0';
+        }
+        return status;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Table of the content types of WebServer, by file extension, looked up with a single hash lookup.
+ * The table is read from a file in the format of the mime.types file of Apache and nginx, so the one of
+ * the system can be used as well: one type per line, followed by its extensions, and # for comments.
+ * The file of nginx wraps the same entries in a "types { ... }" block, each ending with a semicolon and
+ * possibly spanning several lines; a file with a brace is read that way.
+ * Extensions are matched ignoring their case.
+ */
+class MimeTypes {
+
+    /**
+     * The type of the files whose extension is unknown. It is made up; it will probably make the browser
+     * offer to save the file.
+     */
+    static final String UNKNOWN = "x-application/x-unknown";
+
+    // The table used when the file cannot be read, which is the one shipped in mime.types
+    private static final String[][] DEFAULTS = {
+        { "text/plain", "txt" },
+        { "text/html", "html", "htm" },
+        { "text/css", "css" },
+        { "text/javascript", "js" },
+        { "text/x-java", "java" },
+        { "image/jpeg", "jpeg", "jpg" },
+        { "image/png", "png" },
+        { "image/gif", "gif" },
+        { "image/x-icon", "ico" },
+        { "application/java-vm", "class" },
+        { "application/java-archive", "jar" },
+        { "application/zip", "zip" },
+        { "application/xml", "xml" },
+        { "application/xhtml+xml", "xhtml" },
+    };
+
+    private final Map<String, String> types;
+
+    private MimeTypes(Map<String, String> types) {
+        this.types = types;
+    }
+
+    /**
+     * Reads a table from a file, or falls back to the default table if the file cannot be read.
+     * @param file The file to read.
+     * @return The table.
+     */
+    static MimeTypes load(File file) {
+        Map<String, String> types = new HashMap<>();
+        try {
+            StringBuilder text = new StringBuilder();
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                int comment = line.indexOf('#');
+                text.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+            }
+            String[] entries;
+            int open = text.indexOf("{");
+            if (open >= 0) {
+                int close = text.lastIndexOf("}");
+                entries = text.substring(open + 1, close > open ? close : text.length()).split(";");
+            } else {
+                entries = text.toString().split("\n");
+            }
+            for (String entry : entries) {
+                String[] fields = entry.trim().split("\\s+");
+                for (int i = 1; i < fields.length; i++) {
+                    types.put(fields[i].toLowerCase(Locale.ROOT), fields[0]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot read " + file + ", using the default content types: " + e);
+            types.clear();
+            for (String[] type : DEFAULTS) {
+                for (int i = 1; i < type.length; i++) {
+                    types.put(type[i], type[0]);
+                }
+            }
+        }
+        return new MimeTypes(types);
+    }
+
+    /**
+     * Gets the content type of a file from its extension.
+     * @param fileName The name of the file.
+     * @return The content type, or UNKNOWN if the name has no extension or an unknown one.
+     */
+    String get(String fileName) {
+        int pos = fileName.lastIndexOf('.');
+        if (pos < 0) {
+            return UNKNOWN;
+        }
+        String type = types.get(fileName.substring(pos + 1));
+        if (type == null) {
+            type = types.get(fileName.substring(pos + 1).toLowerCase(Locale.ROOT));
+        }
+        return type != null ? type : UNKNOWN;
+    }
+}
@@ -0,0 +1,542 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking engine of WebServer, selected with -Dwebserver.engine=nio.
+ * One acceptor thread accepts the connections and hands them out, round-robin, to a small set of event
+ * loops. With -Dwebserver.acceptors set above 1 on Linux, there is no acceptor thread: the engine runs that
+ * many shards instead, each an event loop with its own listening socket bound with SO_REUSEPORT, which
+ * accepts and serves its connections without handing them between threads, while the kernel spreads the
+ * new connections between the shards; see WebServer.openListeners().
+ * Each event loop serves all of its connections from a single thread with a Selector: requests
+ * are parsed out of pooled direct buffers as their bytes arrive, and responses are written as the socket
+ * accepts them, so an idle or slow connection costs a few buffers instead of a thread. Connections are kept
+ * open between requests as configured in WebServer, and pipelined requests are answered in order.
+ *
+ * Responses are built by WebServer.respond() and recorded by WebServer.recordResponse(), the same as in the
+ * blocking engine.
+ * The amount of event loops is set with -Dwebserver.loops (default: the amount of processors), unless the
+ * engine is sharded.
+ * The limits of WebServer on the connections of each client, and on the time taken to receive a request
+ * or to write a response, apply here too.
+ */
+public class NioWebServer {
+
+    private static final int LOOPS = Integer.getInteger("webserver.loops", Runtime.getRuntime().availableProcessors());
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Math.max(1, WebServer.KEEP_ALIVE_SECONDS));
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(WebServer.REQUEST_TIMEOUT_SECONDS);
+    private static final long WRITE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(WebServer.WRITE_TIMEOUT_SECONDS);
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final int MAX_ACCEPTS_PER_SELECT = 64;
+
+    /**
+     * Runs the engine on the given port, until the JVM exits.
+     * @param port The port to listen on.
+     * @throws IOException If the listening socket or the selectors cannot be opened.
+     */
+    static void run(int port) throws IOException {
+
+        ServerSocketChannel[] listeners = WebServer.openListeners(port, WebServer.ACCEPTORS);
+        if (listeners.length > 1) {
+            for (int i = 0; i < listeners.length; i++) {
+                Thread thread = new Thread(new EventLoop(listeners[i]), "event-loop-" + i);
+                thread.start();
+            }
+            System.out.println("Listening on port " + port + " with " + listeners.length + " shards");
+            return;
+        }
+        ServerSocketChannel server = listeners[0];
+
+        EventLoop[] loops = new EventLoop[Math.max(1, LOOPS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(null);
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.start();
+        }
+        System.out.println("Listening on port " + port + " with " + loops.length + " event loops");
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (!server.isOpen()) {
+                    throw e;
+                }
+                // Like running out of file descriptors: the connection waits in the backlog for the next try
+                System.out.println("Failed to accept a connection: " + e);
+                WebServer.pauseAccepting();
+                continue;
+            }
+            InetAddress client = channel.socket().getInetAddress();
+            if (!WebServer.admitClient(client)) {
+                WebServer.reject(channel, client);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true); // see WebServer.handleConnection()
+            } catch (IOException e) {
+                // Like a reset by the peer before the connection is set up
+                WebServer.releaseClient(client);
+                EventLoop.closeQuietly(channel);
+                continue;
+            }
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Pool of direct buffers owned by one event loop, so it needs no synchronization.
+     */
+    private static class BufferPool {
+
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        void release(ByteBuffer buffer) {
+            if (buffer != null && buffers.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                buffers.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * State of one connection: the bytes received and not parsed yet, the response being written, and
+     * what is needed to decide when to close it.
+     */
+    private static class Connection {
+
+        final SocketChannel channel;
+        ByteBuffer in;
+        ByteBuffer head;
+        ByteBuffer body;
+        FileChannel file;
+        long filePosition;
+        long fileRemaining;
+        ByteBuffer chunk;
+        final ByteBuffer[] headAndBody = new ByteBuffer[2];
+        final HttpParser parser = new HttpParser();
+        boolean keepAlive;
+        int served;
+        long lastActive;
+        // When the first byte of the request being received was parsed, 0 if none; for the first request of
+        // the connection, when it was accepted, so the keep-alive timeout only applies between requests
+        long requestStarted;
+        long responseStarted;
+        boolean closed;
+
+        // The response being written, and what is logged about its request once it has been written
+        final InetAddress client;
+        HttpResponse response;
+        String method;
+        String target;
+        String version;
+        long started;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress();
+            this.lastActive = System.nanoTime();
+            this.requestStarted = lastActive;
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final ServerSocketChannel listener;
+        private final SelectionKey listenerKey;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final BufferPool pool = new BufferPool();
+
+        // When a shard that failed to accept resumes accepting, 0 if it is accepting
+        private long acceptPausedUntil;
+
+        /**
+         * @param listener The listening socket of this loop, if it is a shard, or null if its connections
+         *    are handed to it by the acceptor thread.
+         */
+        EventLoop(ServerSocketChannel listener) throws IOException {
+            selector = Selector.open();
+            this.listener = listener;
+            if (listener != null) {
+                listener.configureBlocking(false);
+                listenerKey = listener.register(selector, SelectionKey.OP_ACCEPT);
+            } else {
+                listenerKey = null;
+            }
+        }
+
+        /**
+         * Hands a new connection to this loop. Called from the acceptor thread.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.nanoTime();
+            while (true) {
+                try {
+                    selector.select(acceptPausedUntil != 0 ? WebServer.ACCEPT_RETRY_MILLIS : SWEEP_INTERVAL_MILLIS);
+                } catch (IOException e) {
+                    System.out.println("Event loop stopped: " + e);
+                    return;
+                }
+                if (acceptPausedUntil != 0 && System.nanoTime() - acceptPausedUntil >= 0) {
+                    acceptPausedUntil = 0;
+                    listenerKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null) {
+                    open(channel);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.channel() == listener) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(key, connection);
+                        } else if (key.isWritable()) {
+                            serve(key, connection);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        close(key, connection);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS)) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            }
+        }
+
+        /**
+         * Accepts the connections waiting on the listening socket of this shard, up to MAX_ACCEPTS_PER_SELECT
+         * at a time so a burst of them does not hold up the connections already open. After a failed accept,
+         * like running out of file descriptors, the shard stops selecting its listening socket for
+         * WebServer.ACCEPT_RETRY_MILLIS, since the connection left in the backlog would select it again at once.
+         */
+        private void accept() {
+            for (int i = 0; i < MAX_ACCEPTS_PER_SELECT; i++) {
+                SocketChannel channel;
+                try {
+                    channel = listener.accept();
+                } catch (IOException e) {
+                    System.out.println("Failed to accept a connection: " + e);
+                    listenerKey.interestOps(0);
+                    acceptPausedUntil = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(WebServer.ACCEPT_RETRY_MILLIS);
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+                InetAddress client = channel.socket().getInetAddress();
+                if (!WebServer.admitClient(client)) {
+                    WebServer.reject(channel, client);  // accepted channels are in blocking mode
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    WebServer.releaseClient(client);
+                    closeQuietly(channel);
+                    continue;
+                }
+                open(channel);
+            }
+        }
+
+        /**
+         * Starts serving a connection that has been accepted and admitted, in non-blocking mode.
+         */
+        private void open(SocketChannel channel) {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                WebServer.METRICS.connectionOpened();
+            } catch (IOException e) {
+                WebServer.releaseClient(channel.socket().getInetAddress());
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * Closes the connections that have been waiting for their next request for longer than the keep-alive
+         * timeout, those whose request, or first request since they were accepted, has been arriving for longer
+         * than the request timeout, after trying to send them a 408 if it has begun, and those whose response has
+         * been written for longer than the write timeout.
+         */
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid() || connection == null) {
+                    continue;  // closed, or the listening socket
+                }
+                if (connection.head != null) {
+                    if (WRITE_TIMEOUT_NANOS > 0 && now - connection.responseStarted > WRITE_TIMEOUT_NANOS) {
+                        close(key, connection);
+                    }
+                } else if (connection.requestStarted != 0 && REQUEST_TIMEOUT_NANOS > 0) {
+                    if (now - connection.requestStarted > REQUEST_TIMEOUT_NANOS) {
+                        // A new connection that sent nothing is closed without an answer
+                        if (connection.parser.inRequest()) {
+                            HttpResponse response = HttpResponse.error(408, false);
+                            try {
+                                // A single attempt, which fits in the socket buffer unless the client stopped
+                                // reading
+                                connection.channel.write(new ByteBuffer[] { response.head(), response.body() });
+                                WebServer.recordResponse(connection.client, null, null, null, response, now);
+                            } catch (IOException e) {
+                            }
+                        }
+                        close(key, connection);
+                    }
+                } else if (now - connection.lastActive > IDLE_TIMEOUT_NANOS) {
+                    close(key, connection);
+                }
+            }
+        }
+
+        private void read(SelectionKey key, Connection connection) throws IOException {
+
+            if (connection.in == null) {
+                connection.in = pool.acquire();
+            }
+            if (connection.channel.read(connection.in) < 0) {
+                close(key, connection);
+                return;
+            }
+            connection.lastActive = System.nanoTime();
+            serve(key, connection);
+        }
+
+        /**
+         * Answers the requests received on a connection, one after the other, until more bytes are needed,
+         * the socket stops accepting the response, or the connection has to be closed. Requests pipelined
+         * behind the previous one are already in the input buffer, so they are answered without waiting
+         * for the selector.
+         */
+        private void serve(SelectionKey key, Connection connection) throws IOException {
+            while (true) {
+                if (connection.head == null) {
+                    HttpResponse response = nextResponse(connection);
+                    if (response == null) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    startResponse(connection, response);
+                }
+                if (!write(connection)) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                finishResponse(connection);
+                if (!connection.keepAlive) {
+                    close(key, connection);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Parses the next request out of the bytes received and builds its response.
+         * @return The response, or null if the header block of the next request is not complete yet.
+         */
+        private HttpResponse nextResponse(Connection connection) {
+
+            if (connection.in == null) {
+                return null;
+            }
+            connection.in.flip();
+            HttpResponse response;
+            try {
+                HttpRequest request = connection.parser.parse(connection.in);
+                if (request == null) {
+                    if (connection.parser.inRequest() && connection.requestStarted == 0) {
+                        connection.requestStarted = System.nanoTime();
+                    }
+                    // The parser keeps what it consumed, so an idle connection does not hold a buffer
+                    pool.release(connection.in);
+                    connection.in = null;
+                    return null; // wait for the rest of the header block
+                }
+                connection.in.compact();
+                connection.requestStarted = 0;
+                connection.started = System.nanoTime();
+                connection.method = request.method();
+                connection.target = request.target();
+                connection.version = request.version();
+                connection.served++;
+                response = WebServer.respond(request, WebServer.keepAlive(request, connection.served));
+            } catch (HttpParser.ParseException e) {
+                connection.started = System.nanoTime();
+                connection.method = null;
+                connection.target = null;
+                connection.version = null;
+                response = HttpResponse.error(e.status(), false);
+            }
+            connection.keepAlive = response.keepAlive();
+            connection.response = response;
+            return response;
+        }
+
+        private void startResponse(Connection connection, HttpResponse response) throws IOException {
+            connection.responseStarted = System.nanoTime();
+            connection.head = response.head();
+            connection.body = response.body();
+            if (response.file() != null) {
+                connection.file = FileChannel.open(response.file().toPath(), StandardOpenOption.READ);
+                connection.filePosition = response.fileOffset();
+                connection.fileRemaining = response.length();
+            }
+        }
+
+        /**
+         * Writes as much of the response as the socket accepts. Files are sent with transferTo() when
+         * WebServer.ZERO_COPY is on, and copied in chunks through a pooled direct buffer otherwise.
+         * @return True if the whole response has been written.
+         */
+        private boolean write(Connection connection) throws IOException {
+
+            SocketChannel channel = connection.channel;
+            if (connection.body != null) {
+                // A single gathering write, so a small response goes out in one packet
+                if (connection.head.hasRemaining() || connection.body.hasRemaining()) {
+                    connection.headAndBody[0] = connection.head;
+                    connection.headAndBody[1] = connection.body;
+                    channel.write(connection.headAndBody);
+                    if (connection.head.hasRemaining() || connection.body.hasRemaining()) {
+                        return false;
+                    }
+                }
+            } else if (connection.head.hasRemaining()) {
+                channel.write(connection.head);
+                if (connection.head.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (connection.file != null && WebServer.ZERO_COPY) {
+                while (connection.fileRemaining > 0) {
+                    long sent = connection.file.transferTo(connection.filePosition, connection.fileRemaining, channel);
+                    if (sent <= 0) {
+                        if (connection.filePosition >= connection.file.size()) {
+                            throw new IOException("File was truncated while it was sent.");
+                        }
+                        return false; // the socket buffer is full, wait until it is writable again
+                    }
+                    connection.filePosition += sent;
+                    connection.fileRemaining -= sent;
+                }
+            } else if (connection.file != null) {
+                if (connection.chunk == null) {
+                    connection.chunk = pool.acquire();
+                    connection.chunk.limit(0);
+                }
+                while (connection.fileRemaining > 0 || connection.chunk.hasRemaining()) {
+                    if (!connection.chunk.hasRemaining()) {
+                        connection.chunk.clear();
+                        if (connection.fileRemaining < connection.chunk.capacity()) {
+                            connection.chunk.limit((int) connection.fileRemaining); // the end of a range
+                        }
+                        int read = connection.file.read(connection.chunk, connection.filePosition);
+                        if (read < 0) {
+                            throw new IOException("File was truncated while it was sent.");
+                        }
+                        connection.filePosition += read;
+                        connection.fileRemaining -= read;
+                        connection.chunk.flip();
+                    }
+                    channel.write(connection.chunk);
+                    if (connection.chunk.hasRemaining()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Releases what the response that was just written used, so the connection can start the next one.
+         */
+        private void finishResponse(Connection connection) {
+            WebServer.recordResponse(connection.client, connection.method, connection.target, connection.version,
+                    connection.response, connection.started);
+            connection.response = null;
+            connection.method = null;
+            connection.target = null;
+            if (connection.file != null) {
+                closeQuietly(connection.file);
+                connection.file = null;
+            }
+            pool.release(connection.chunk);
+            connection.chunk = null;
+            connection.head = null;
+            connection.body = null;
+            connection.headAndBody[0] = null;
+            connection.headAndBody[1] = null;
+            connection.lastActive = System.nanoTime();
+        }
+
+        private void close(SelectionKey key, Connection connection) {
+            if (connection.closed) {
+                return;
+            }
+            connection.closed = true;
+            WebServer.METRICS.connectionClosed();
+            WebServer.releaseClient(connection.client);
+            key.cancel();
+            closeQuietly(connection.channel);
+            if (connection.file != null) {
+                closeQuietly(connection.file);
+                connection.file = null;
+            }
+            pool.release(connection.in);
+            pool.release(connection.chunk);
+            connection.in = null;
+            connection.chunk = null;
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming mode of SpellChecker, used when files are given on the command line, for inputs too large to be
+ * read into memory, like logs and corpora of several gigabytes.
+ * Regular files are memory-mapped and cut into chunks of CHUNK_SIZE bytes, moved forward to the end of the
+ * word they fall in, which are checked in parallel by a pool of threads (-Dspellchecker.threads, default: the
+ * amount of processors). Other inputs, like "-" for the standard input, are read through a channel into
+ * buffers of STREAM_BUFFER_SIZE bytes, cut the same way, and handed to the same pool; the queue of the pool is
+ * bounded, so the reader waits for the checkers instead of filling the memory.
+ *
+ * Words are the runs of ASCII letters, as in SpellChecker, lower-cased. Runs longer than MAX_WORD_LENGTH,
+ * like encoded data, are skipped. The dictionary is only read, so they are shared by all the
+ * threads; each unknown word is reported once, by the thread that finds it first, as soon as it is found, so
+ * the order of the report is not the one of the input.
+ *
+ * Usage: java [-Dspellchecker.threads=n] SpellChecker file... ("-" for the standard input)
+ */
+class ParallelSpellChecker {
+
+    private static final int THREADS = Integer.getInteger("spellchecker.threads", Runtime.getRuntime().availableProcessors());
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_WORD_LENGTH = 45;
+
+    private final SpellDictionary dictionary;
+    private final SpellSuggester suggester;
+    private final Set<String> reported = ConcurrentHashMap.newKeySet();
+    private final AtomicLong words = new AtomicLong();
+    private final ThreadPoolExecutor pool;
+
+    private ParallelSpellChecker(SpellDictionary dictionary, SpellSuggester suggester) {
+        this.dictionary = dictionary;
+        this.suggester = suggester;
+        int threads = Math.max(1, THREADS);
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 2),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Checks the given files, printing each unknown word with its corrections as it is found.
+     * @param files The names of the files, "-" for the standard input.
+     * @param dictionary The dictionary, which is only read.
+     * @param suggester The suggester of corrections, shared by the threads.
+     */
+    static void run(String[] files, SpellDictionary dictionary, SpellSuggester suggester) {
+
+        long startTime = System.nanoTime();
+        ParallelSpellChecker checker = new ParallelSpellChecker(dictionary, suggester);
+        System.out.println("\nPossibly misspelled words:\n");
+        for (String file : files) {
+            try {
+                Path path = Paths.get(file);
+                if (!file.equals("-") && Files.isRegularFile(path)) {
+                    checker.checkMapped(path);
+                } else {
+                    checker.checkStream(file.equals("-") ? Channels.newChannel(System.in)
+                            : FileChannel.open(path, StandardOpenOption.READ));
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot read " + file + ": " + e);
+            }
+        }
+        checker.pool.shutdown();
+        try {
+            checker.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("");
+        System.err.printf("Checked %d words in %d ms, %d possibly misspelled%n", checker.words.get(),
+                (System.nanoTime() - startTime) / 1_000_000, checker.reported.size());
+    }
+
+    /**
+     * Cuts a regular file into chunks, maps them and hands them to the pool. Mapping reads nothing: the pages
+     * of a chunk are read by the thread that checks it, as it goes through them.
+     */
+    private void checkMapped(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = wordEnd(channel, Math.min(size, start + CHUNK_SIZE), size);
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                pool.execute(() -> check(chunk));
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Reads a channel that cannot be mapped into buffers, each ending at the end of a word, and hands them
+     * to the pool as they are read, so the words of a slow stream are reported as they arrive.
+     */
+    private void checkStream(ReadableByteChannel channel) throws IOException {
+        try (ReadableByteChannel in = channel) {
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            boolean eof = false;
+            // In a run of letters longer than the buffer, which is dropped up to its end like check() drops
+            // the runs longer than MAX_WORD_LENGTH
+            boolean skipping = false;
+            while (!eof) {
+                eof = in.read(buffer) < 0;
+                buffer.flip();
+                if (skipping) {
+                    int start = 0;
+                    while (start < buffer.limit() && isLetter(buffer.get(start))) {
+                        start++;
+                    }
+                    skipping = start == buffer.limit();
+                    if (skipping) {
+                        buffer.clear();
+                        continue;
+                    }
+                    buffer.position(start);
+                    buffer.compact();
+                    buffer.flip();
+                }
+                // The letters after the last non-letter may be the start of a word that goes on in the next read
+                int end = buffer.limit();
+                if (!eof) {
+                    while (end > 0 && isLetter(buffer.get(end - 1))) {
+                        end--;
+                    }
+                    if (end == 0 && buffer.limit() < buffer.capacity()) {
+                        buffer.position(buffer.limit());
+                        buffer.limit(buffer.capacity());
+                        continue; // nothing but the start of a word yet
+                    } else if (end == 0) {
+                        skipping = true; // a run of letters longer than the buffer
+                        buffer.clear();
+                        continue;
+                    }
+                }
+                if (end > 0) {
+                    ByteBuffer chunk = ByteBuffer.allocate(end);
+                    chunk.put(buffer.array(), 0, end).flip();
+                    pool.execute(() -> check(chunk));
+                }
+                buffer.position(end);
+                buffer.compact();
+            }
+        }
+    }
+
+    /**
+     * Moves a position of a file forward to the end of the word it falls in, if any.
+     * @return The position of the first byte that is not a letter at or after it, or the size of the file.
+     */
+    private static long wordEnd(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(256);
+        while (position < size) {
+            bytes.clear();
+            int read = channel.read(bytes, position);
+            if (read < 0) {
+                return size;
+            }
+            for (int i = 0; i < read; i++) {
+                if (!isLetter(bytes.get(i))) {
+                    return position + i;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Splits a chunk into words and reports the unknown ones. Run by the threads of the pool.
+     */
+    private void check(ByteBuffer chunk) {
+        char[] word = new char[MAX_WORD_LENGTH];
+        // A view of the word, so a String is only built for the unknown ones
+        CharBuffer view = CharBuffer.wrap(word);
+        int length = 0;
+        boolean tooLong = false;
+        long count = 0;
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i <= limit; i++) {
+            byte b = i < limit ? chunk.get(i) : (byte) ' ';
+            if (isLetter(b)) {
+                if (length < MAX_WORD_LENGTH) {
+                    word[length++] = (char) (b | 0x20); // lower case
+                } else {
+                    tooLong = true;
+                }
+            } else if (length > 0) {
+                if (!tooLong) {
+                    count++;
+                    view.limit(length);
+                    if (!dictionary.contains(view)) {
+                        String str = new String(word, 0, length);
+                        if (reported.add(str)) {
+                            report(str);
+                        }
+                    }
+                }
+                length = 0;
+                tooLong = false;
+            }
+        }
+        words.addAndGet(count);
+    }
+
+    private void report(String str) {
+        String corr = suggester.suggestionLine(str);
+        // A single println, so the lines of the threads do not mix
+        System.out.println(str + ": " + (corr.isEmpty() ? "(no suggestions)" : corr));
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+}
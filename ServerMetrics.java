@@ -0,0 +1,190 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of WebServer, shared by both engines: the requests served and the bytes sent, the responses
+ * by status, the connections, and a histogram of the latencies of the requests. They are updated with
+ * adders and atomic counters, so recording a request takes no lock, and can be read through JMX, under
+ * "WebServer:type=ServerMetrics", or as text from the metrics endpoint, see WebServer.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+
+    private static final int MAX_STATUS = 600;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AccessLog accessLog;
+
+    /**
+     * @param accessLog The access log whose dropped entries are reported, or null if there is none.
+     */
+    ServerMetrics(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Records a response that has been written.
+     * @param status The status of the response.
+     * @param bytes The bytes of the response, head included.
+     * @param micros The time taken to parse the request and write its response, in microseconds.
+     */
+    void recordResponse(int status, long bytes, long micros) {
+        requests.increment();
+        bytesSent.add(bytes);
+        if (status >= 0 && status < MAX_STATUS) {
+            statuses.incrementAndGet(status);
+        }
+        latencies.record(micros);
+    }
+
+    void connectionOpened() {
+        connectionsAccepted.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Publishes the metrics in the platform MBean server.
+     * @throws JMException If the MBean cannot be registered.
+     */
+    void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("WebServer:type=ServerMetrics"));
+    }
+
+    /**
+     * Formats the metrics in the text format of Prometheus, so they can be scraped from the metrics endpoint.
+     * @return The text, one metric per line.
+     */
+    String toText() {
+        StringBuilder text = new StringBuilder(1024);
+        text.append("# TYPE webserver_requests_total counter\n")
+                .append("webserver_requests_total ").append(getRequests()).append('\n')
+                .append("# TYPE webserver_bytes_sent_total counter\n")
+                .append("webserver_bytes_sent_total ").append(getBytesSent()).append('\n')
+                .append("# TYPE webserver_responses_total counter\n");
+        for (int status = 0; status < MAX_STATUS; status++) {
+            long count = statuses.get(status);
+            if (count > 0) {
+                text.append("webserver_responses_total{status=\"").append(status).append("\"} ").append(count).append('\n');
+            }
+        }
+        text.append("# TYPE webserver_connections_total counter\n")
+                .append("webserver_connections_total ").append(getConnectionsAccepted()).append('\n')
+                .append("# TYPE webserver_connections_active gauge\n")
+                .append("webserver_connections_active ").append(getActiveConnections()).append('\n')
+                .append("# TYPE webserver_access_log_dropped_total counter\n")
+                .append("webserver_access_log_dropped_total ").append(getAccessLogDropped()).append('\n')
+                .append("# TYPE webserver_latency_microseconds summary\n");
+        double[] quantiles = { 0.5, 0.9, 0.99, 0.999, 1 };
+        for (double quantile : quantiles) {
+            text.append("webserver_latency_microseconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(latencies.percentile(quantile * 100)).append('\n');
+        }
+        text.append("webserver_latency_microseconds_count ").append(latencies.count()).append('\n')
+                .append("webserver_latency_microseconds_sum ").append(Math.round(latencies.mean() * latencies.count()))
+                .append('\n');
+        return text.toString();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getResponses2xx() {
+        return statusClass(2);
+    }
+
+    @Override
+    public long getResponses3xx() {
+        return statusClass(3);
+    }
+
+    @Override
+    public long getResponses4xx() {
+        return statusClass(4);
+    }
+
+    @Override
+    public long getResponses5xx() {
+        return statusClass(5);
+    }
+
+    private long statusClass(int digit) {
+        long total = 0;
+        for (int status = digit * 100; status < digit * 100 + 100; status++) {
+            total += statuses.get(status);
+        }
+        return total;
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return accessLog != null ? accessLog.dropped() : 0;
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latencies.mean();
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return latencies.percentile(50);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return latencies.percentile(99);
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return latencies.percentile(99.9);
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return latencies.max();
+    }
+
+    /**
+     * Resets the request, byte, status and latency counters. The connection counters are kept, since the
+     * active connections would no longer add up.
+     */
+    @Override
+    public void reset() {
+        requests.reset();
+        bytesSent.reset();
+        for (int status = 0; status < MAX_STATUS; status++) {
+            statuses.set(status, 0);
+        }
+        latencies.reset();
+    }
+}
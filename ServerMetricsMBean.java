@@ -0,0 +1,36 @@
+/**
+ * JMX management interface of ServerMetrics. Latencies are in microseconds, from the moment a request has
+ * been parsed until its response has been written.
+ */
+public interface ServerMetricsMBean {
+
+    long getRequests();
+
+    long getBytesSent();
+
+    long getResponses2xx();
+
+    long getResponses3xx();
+
+    long getResponses4xx();
+
+    long getResponses5xx();
+
+    long getConnectionsAccepted();
+
+    long getActiveConnections();
+
+    long getAccessLogDropped();
+
+    double getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    void reset();
+}
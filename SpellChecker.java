@@ -1,28 +1,46 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashSet;
 import java.util.Scanner;
 import java.util.TreeSet;
+import java.util.function.Predicate;
 import javax.swing.JFileChooser;
 
 /**
  * Class to spellcheck the text in a file, comparing with the dictionary in the hardcoded "words.txt" file.
  * The class asks for the user to choose a file to check, or it can be altered to use a hardcoded one, for faster iteration.
+ * Files given on the command line are checked instead, without asking, by the streaming mode of ParallelSpellChecker,
+ * which also handles files too large to be read into memory.
  * If the words.txt file is not provided in the same directory as the class file, the program will fail.
+ * The corrections are looked up in a SpellIndex of the dictionary, so words within two edits of a misspelled
+ * one are suggested; -Dspellchecker.maxDistance=1 limits them to one edit, like corrections() does.
+ * If the dictionary has been compiled into "words.dawg" (java Dawg words.txt words.dawg), or the file given by
+ * -Dspellchecker.dawg, that file is memory-mapped instead: the program starts without reading the word list
+ * nor building the index, and the corrections are found by walking the automaton.
+ * The corrections are ranked by SpellSuggester, the most likely first, with the word counts of "counts.txt"
+ * (lines "word count"), or of the file given by -Dspellchecker.counts, if there is one; only the best
+ * -Dspellchecker.suggestions (default 5) are printed.
  */
 public class SpellChecker {
 
+    private static final int MAX_DISTANCE = Integer.getInteger("spellchecker.maxDistance", SpellIndex.MAX_DISTANCE);
+    private static final String DAWG_FILE = System.getProperty("spellchecker.dawg", "./words.dawg");
+    private static final String COUNTS_FILE = System.getProperty("spellchecker.counts", "./counts.txt");
+    private static final int SUGGESTIONS = Integer.getInteger("spellchecker.suggestions", 5);
+
     public static void main(String[] args) {
         
-        HashSet<String> hSet = new HashSet<>();
         HashSet<String> hSetInput = new HashSet<>();
 
-        try (Scanner filein = new Scanner(new File("./words.txt"))) {
-            while (filein.hasNextLine()) {
-                hSet.add(filein.nextLine().toLowerCase());
-            }
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found.");
+        SpellDictionary dictionary = loadDictionary();
+        SpellSuggester suggester = new SpellSuggester(dictionary, loadFrequencies(), SUGGESTIONS);
+        if (args.length > 0) {
+            ParallelSpellChecker.run(args, dictionary, suggester);
+            return;
         }
 
         //try (Scanner userFile = new Scanner(new File("./test.txt"))) {    / Use this line to use directly the test.txt file
@@ -38,15 +56,14 @@ public class SpellChecker {
 
         System.out.println("\nPossibly misspelled words:\n");
 
-        TreeSet<String> corr = new TreeSet<>();
         for (String str : hSetInput) {
-            if (!hSet.contains(str)) {
+            if (!dictionary.contains(str)) {
                 System.out.print(str + ": ");
-                corr = corrections(str, hSet);
+                String corr = suggester.suggestionLine(str);
                 if (corr.isEmpty()) {
                     System.out.print("(no suggestions)");
                 } else {
-                    System.out.print(corr.toString().replace("[", "").replace("]", ""));
+                    System.out.print(corr);
                 }
                 System.out.println("");
             }
@@ -55,6 +72,44 @@ public class SpellChecker {
         System.out.println("");
     }
 
+    /**
+     * Maps the compiled dictionary if there is one, or else reads "words.txt" into a HashSet and indexes it.
+     */
+    static SpellDictionary loadDictionary() {
+        Path dawg = Paths.get(DAWG_FILE);
+        if (Files.isRegularFile(dawg)) {
+            try {
+                return Dawg.open(dawg, MAX_DISTANCE);
+            } catch (IOException e) {
+                System.out.println("Cannot map " + dawg + ", reading words.txt: " + e);
+            }
+        }
+        HashSet<String> hSet = new HashSet<>();
+        try (Scanner filein = new Scanner(new File("./words.txt"))) {
+            while (filein.hasNextLine()) {
+                hSet.add(filein.nextLine().toLowerCase());
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found.");
+        }
+        return new SpellIndex(hSet, MAX_DISTANCE);
+    }
+
+    /**
+     * Reads the word counts if there are any, or else gives every word the same probability.
+     */
+    static WordFrequencies loadFrequencies() {
+        Path counts = Paths.get(COUNTS_FILE);
+        if (Files.isRegularFile(counts)) {
+            try {
+                return WordFrequencies.load(counts);
+            } catch (IOException e) {
+                System.out.println("Cannot read " + counts + ", suggestions are not ranked by frequency: " + e);
+            }
+        }
+        return WordFrequencies.uniform();
+    }
+
     /**
      * Lets the user select an input file using a standard file selection dialog
      * box. If the user cancels the dialog without selecting a file, the return
@@ -91,7 +146,6 @@ public class SpellChecker {
         TreeSet<String> corr = new TreeSet<>();
         StringBuilder bad = new StringBuilder(badWord);
         String testStr;
-        String testStr2;
 
         // Delete one character from the input string and see if it is the dictionary
         for (int i = 0; i < badWord.length(); i++) {
@@ -105,11 +159,13 @@ public class SpellChecker {
         // Change any letter to any other letter
         for (int i = 0; i < badWord.length(); i++) {
             for (char ch = 'a'; ch <= 'z'; ch++){   
-                testStr = badWord.replace(badWord.charAt(i), ch);
+                bad.setCharAt(i, ch);
+                testStr = bad.toString();
                 if (dictionary.contains(testStr)) {
                     corr.add(testStr);
                 }
             }
+            bad.setCharAt(i, badWord.charAt(i));
         } 
 
         // Insert any letter at any point
@@ -130,15 +186,118 @@ public class SpellChecker {
             }
         }
 
-        // Insert a space at any point in the misspelled word (and check that both of the words that are produced are in the dictionary)
-        for (int i = 1; i < badWord.length(); i++) {
-            testStr = badWord.substring(0, i);
-            testStr2 = badWord.substring(i, badWord.length());
-            if (dictionary.contains(testStr) && dictionary.contains(testStr2)){
-                corr.add(testStr + " " + testStr2);
+        addSplits(badWord, dictionary::contains, corr);
+
+        return corr;
+    }
+
+    /**
+     * Identifies the same corrections as the method above without building a string per edit: each edit is
+     * made in place in a single char buffer, which the table looks up as it is, and a word found is added as
+     * the String stored in the table, so nothing is allocated per candidate.
+     * @param badWord Possibly misspelled word. It is assumed not to be in the dictionary.
+     * @param dictionary Table of the words to use for comparison.
+     * @return A TreeSet containing all the possible corrections. The set will be empty if no correction is found.
+     */
+    static TreeSet<String> corrections(String badWord, WordTable dictionary) {
+
+        TreeSet<String> corr = new TreeSet<>();
+        int length = badWord.length();
+        char[] word = badWord.toCharArray();
+        char[] buffer = new char[length + 1];
+
+        // Delete one character: the buffer holds the word without word[i]; an empty word only gets insertions
+        if (length > 0) {
+            badWord.getChars(1, length, buffer, 0);
+        }
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                buffer[i - 1] = word[i - 1];
+            }
+            addIfFound(dictionary, buffer, length - 1, corr);
+        }
+
+        // Change any letter to any other letter, one position at a time
+        badWord.getChars(0, length, buffer, 0);
+        for (int i = 0; i < length; i++) {
+            for (char ch = 'a'; ch <= 'z'; ch++) {
+                if (ch != word[i]) {
+                    buffer[i] = ch;
+                    addIfFound(dictionary, buffer, length, corr);
+                }
+            }
+            buffer[i] = word[i];
+        }
+
+        // Insert any letter at any point: the buffer holds the word with a hole at i
+        badWord.getChars(0, length, buffer, 1);
+        for (int i = 0; i <= length; i++) {
+            if (i > 0) {
+                buffer[i - 1] = word[i - 1];
+            }
+            for (char ch = 'a'; ch <= 'z'; ch++) {
+                buffer[i] = ch;
+                addIfFound(dictionary, buffer, length + 1, corr);
+            }
+        }
+
+        // Swap any two neighboring characters
+        badWord.getChars(0, length, buffer, 0);
+        for (int i = 1; i < length; i++) {
+            if (word[i] != word[i - 1]) {
+                buffer[i - 1] = word[i];
+                buffer[i] = word[i - 1];
+                addIfFound(dictionary, buffer, length, corr);
+                buffer[i - 1] = word[i - 1];
+                buffer[i] = word[i];
+            }
+        }
+
+        // Insert a space: both halves are looked up in the word itself
+        for (int i = 1; i < length; i++) {
+            int first = dictionary.indexOf(word, 0, i);
+            if (first >= 0) {
+                int second = dictionary.indexOf(word, i, length - i);
+                if (second >= 0) {
+                    corr.add(dictionary.word(first) + " " + dictionary.word(second));
+                }
             }
         }
 
         return corr;
     }
-}
\ No newline at end of file
+
+    private static void addIfFound(WordTable dictionary, char[] buffer, int length, TreeSet<String> corr) {
+        int index = dictionary.indexOf(buffer, 0, length);
+        if (index >= 0) {
+            corr.add(dictionary.word(index));
+        }
+    }
+
+    /**
+     * Identifies possible corrections on the string provided with a SpellIndex or a Dawg, which find the
+     * words within their distance without trying every edit: the same words as the method above at
+     * distance 1, and also the ones at distance 2, plus the insertion of a space.
+     * @param badWord Possibly misspelled word. It is assumed not to be in the dictionary.
+     * @param dictionary Dictionary to use for comparison.
+     * @return A TreeSet containing all the possible corrections. The set will be empty if no correction is found.
+     */
+    static TreeSet<String> corrections(String badWord, SpellDictionary dictionary) {
+        TreeSet<String> corr = dictionary.suggestions(badWord);
+        addSplits(badWord, dictionary::contains, corr);
+        return corr;
+    }
+
+    /**
+     * Insert a space at any point in the misspelled word (and check that both of the words that are produced are in the dictionary)
+     */
+    private static void addSplits(String badWord, Predicate<String> dictionary, TreeSet<String> corr) {
+        for (int i = 1; i < badWord.length(); i++) {
+            String testStr = badWord.substring(0, i);
+            String testStr2 = badWord.substring(i, badWord.length());
+            if (dictionary.test(testStr) && dictionary.test(testStr2)){
+                corr.add(testStr + " " + testStr2);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class compares the brute-force SpellChecker.corrections(), which builds every string at distance 1
+ * of a misspelled word and looks each one up in the dictionary, with the same search made in a char buffer
+ * and looked up in a WordTable, and with the lookups of a SpellIndex at distance 1 and 2. The dictionary is
+ * made of the first 100,000 words of words.txt if it is found, or else of 100,000 random words with the
+ * letter frequencies of English; the misspelled words are 2,000 of its words with one or two random edits
+ * (deletion, insertion, change or swap of neighbors).
+ *
+ * Each time is the fastest of ten rounds, the first ones warming up the JIT. The output obtained with the
+ * random dictionary, with -Xms1g -Xmx1g, is below:
+ *
+ * Dictionary: 100000 words (random), 2000 misspelled words
+ * Brute force, distance 1: 57.5 us per word, 43901 bytes allocated per word, 3135 suggestions
+ * Brute force in a char buffer, distance 1: 15.8 us per word, 200 bytes allocated per word, 3135 suggestions
+ * SpellIndex, distance 1: built in 1047 ms, 862187 deletions (6 MB), 4.8 us per word, 3135 suggestions
+ * SpellIndex, distance 2: built in 1200 ms, 3662816 deletions (27 MB), 27.5 us per word, 60017 suggestions
+ *
+ * The char buffer only allocates the buffer and the set returned, instead of a string for each of the 600
+ * or so edits of a word. Random words are much closer to each other than English ones: at distance 2 most of
+ * the time goes to checking the distance of the 80 or so words found under the deletions of each misspelled
+ * word.
+ *
+ * @author Rafael Souza
+ */
+public class SpellCheckerBenchmark {
+
+    private static final int WORDS = 100_000;
+    private static final int MISSPELLED = 2_000;
+    private static final int ROUNDS = 10;
+
+    // The letters of English, repeated by their frequency in percent, rounded up
+    private static final String LETTERS = "aaaaaaaabbcccddddeeeeeeeeeeeeeffgghhhhhhiiiiiiijkllllmmmnnnnnnnooooooooppqrrrrrr"
+            + "sssssstttttttttuuuvwwxyyz";
+
+    /**
+     * Main function, that will execute the benchmark comparison.
+     *
+     * @param args Command line arguments, not used in the method.
+     */
+    public static void main(String[] args) {
+
+        Random rand = new Random(42);
+        HashSet<String> dictionary = new HashSet<>();
+        String source = "words.txt";
+        try {
+            for (String line : Files.readAllLines(new File("./words.txt").toPath(), StandardCharsets.UTF_8)) {
+                if (dictionary.size() < WORDS && !line.isEmpty()) {
+                    dictionary.add(line.toLowerCase());
+                }
+            }
+        } catch (IOException e) {
+            source = "random";
+            while (dictionary.size() < WORDS) {
+                dictionary.add(randomWord(rand, 3 + rand.nextInt(6) + rand.nextInt(6)));
+            }
+        }
+
+        List<String> words = new ArrayList<>(dictionary);
+        words.sort(null);
+        List<String> misspelled = new ArrayList<>();
+        while (misspelled.size() < MISSPELLED) {
+            String word = words.get(rand.nextInt(words.size()));
+            for (int edits = 1 + rand.nextInt(2); edits > 0; edits--) {
+                word = edit(rand, word);
+            }
+            if (!dictionary.contains(word)) {
+                misspelled.add(word);
+            }
+        }
+        System.out.printf("Dictionary: %d words (%s), %d misspelled words%n", dictionary.size(), source, MISSPELLED);
+
+        // The first rounds warm up the JIT; the fastest round is the one least disturbed by the rest of the machine
+        long runTime = Long.MAX_VALUE;
+        long allocated = 0;
+        int found = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            long startBytes = allocatedBytes();
+            found = 0;
+            for (String word : misspelled) {
+                found += SpellChecker.corrections(word, dictionary).size();
+            }
+            runTime = Math.min(runTime, System.nanoTime() - startTime);
+            allocated = allocatedBytes() - startBytes;
+        }
+        System.out.printf("Brute force, distance 1: %.1f us per word, %d bytes allocated per word, %d suggestions%n",
+                runTime / 1e3 / MISSPELLED, allocated / MISSPELLED, found);
+
+        WordTable table = new WordTable(words.toArray(new String[0]));
+        runTime = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            long startBytes = allocatedBytes();
+            found = 0;
+            for (String word : misspelled) {
+                found += SpellChecker.corrections(word, table).size();
+            }
+            runTime = Math.min(runTime, System.nanoTime() - startTime);
+            allocated = allocatedBytes() - startBytes;
+        }
+        System.out.printf("Brute force in a char buffer, distance 1: %.1f us per word, %d bytes allocated per word, "
+                + "%d suggestions%n", runTime / 1e3 / MISSPELLED, allocated / MISSPELLED, found);
+
+        for (int distance = 1; distance <= SpellIndex.MAX_DISTANCE; distance++) {
+            long startTime = System.nanoTime();
+            SpellIndex index = new SpellIndex(dictionary, distance);
+            long buildTime = System.nanoTime() - startTime;
+            runTime = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                startTime = System.nanoTime();
+                found = 0;
+                for (String word : misspelled) {
+                    found += SpellChecker.corrections(word, index).size();
+                }
+                runTime = Math.min(runTime, System.nanoTime() - startTime);
+            }
+            System.out.printf("SpellIndex, distance %d: built in %d ms, %d deletions (%d MB), %.1f us per word, "
+                    + "%d suggestions%n", distance, buildTime / 1_000_000, index.deletionCount(),
+                    index.deletionCount() * 8L >> 20, runTime / 1e3 / MISSPELLED, found);
+        }
+    }
+
+    /**
+     * @return The bytes allocated by this thread so far, or 0 if the JVM does not count them.
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static String randomWord(Random rand, int length) {
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            word.append(LETTERS.charAt(rand.nextInt(LETTERS.length())));
+        }
+        return word.toString();
+    }
+
+    private static String edit(Random rand, String word) {
+        StringBuilder edited = new StringBuilder(word);
+        int position = rand.nextInt(word.length());
+        char letter = LETTERS.charAt(rand.nextInt(LETTERS.length()));
+        switch (word.length() > 2 ? rand.nextInt(4) : 1) {
+            case 0:
+                edited.deleteCharAt(position);
+                break;
+            case 1:
+                edited.insert(position, letter);
+                break;
+            case 2:
+                edited.setCharAt(position, letter);
+                break;
+            default:
+                if (position == 0) {
+                    position = 1;
+                }
+                edited.setCharAt(position, word.charAt(position - 1));
+                edited.setCharAt(position - 1, word.charAt(position));
+        }
+        return edited.toString();
+    }
+}
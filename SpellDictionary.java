@@ -0,0 +1,21 @@
+import java.util.TreeSet;
+
+/**
+ * A dictionary of SpellChecker: the words it knows, and the ones close to a word it does not know.
+ * Implementations are immutable, so they can be shared by the threads of ParallelSpellChecker.
+ */
+interface SpellDictionary {
+
+    /**
+     * @param word A lower-case word.
+     * @return True if the word is in the dictionary.
+     */
+    boolean contains(CharSequence word);
+
+    /**
+     * Finds the words of the dictionary within a small edit distance of a word.
+     * @param word A lower-case word.
+     * @return The words found, sorted; the word itself is not included.
+     */
+    TreeSet<String> suggestions(String word);
+}
@@ -0,0 +1,294 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Index of a dictionary that finds the words within a small edit distance of a word, with the symmetric
+ * delete algorithm of SymSpell: every word is stored under each string obtained by deleting up to maxDistance
+ * of its letters, so the words close to a misspelled one are those stored under one of its own deletions.
+ * A lookup only deletes letters from the misspelled word, instead of trying every change, insertion and swap,
+ * and finds the words at distance 2 as cheaply as those at distance 1.
+ *
+ * The deletions are not stored as strings: each one is reduced to a 32-bit hash, and the hashes are kept,
+ * with the index of their word, in a single array of longs sorted by hash. A second array holds where each
+ * range of hashes with the same highest bits starts, about one deletion per range, so a deletion is found
+ * with two memory accesses instead of the twenty or so of a binary search, which all miss the CPU caches on
+ * an index this size. The words that share a hash with a deletion only by accident are dropped when their
+ * distance is checked.
+ * The distance is the optimal string alignment distance: the letters deleted, inserted or changed, plus the
+ * swaps of two neighboring letters, which are the edits SpellChecker.corrections() tries.
+ *
+ * An index is immutable once built, so it can be searched by any number of threads.
+ */
+class SpellIndex implements SpellDictionary {
+
+    /**
+     * The largest distance an index can be built for. Each step adds a power of the length of the words
+     * to the size of the index.
+     */
+    static final int MAX_DISTANCE = 2;
+
+    private final String[] words;
+    private final WordTable table;
+    private final int maxDistance;
+    // Pairs of the hash of a deletion (high 32 bits, sign flipped so they sort as unsigned) and the index of
+    // its word (low 32 bits), sorted
+    private final long[] deletes;
+    // Where the deletions whose hash starts with each value of its highest bucketBits bits start in deletes
+    private final int[] buckets;
+    private final int bucketBits;
+
+    /**
+     * Builds the index of a dictionary.
+     * @param dictionary The words, without repetitions, which are compared as they are, so they should be
+     *    lower case.
+     * @param maxDistance The largest distance the index finds words at, 1 or 2.
+     * @throws IllegalArgumentException If the distance is not 1 or 2.
+     */
+    SpellIndex(Collection<String> dictionary, int maxDistance) {
+        if (maxDistance < 1 || maxDistance > MAX_DISTANCE) {
+            throw new IllegalArgumentException("The distance must be between 1 and " + MAX_DISTANCE + ": " + maxDistance);
+        }
+        this.maxDistance = maxDistance;
+        words = dictionary.toArray(new String[0]);
+        Arrays.sort(words);
+        table = new WordTable(words);
+
+        long count = 0;
+        for (String word : words) {
+            count += deletionCount(word.length());
+        }
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many deletions to index: " + count);
+        }
+        long[] pairs = new long[(int) count];
+        int size = 0;
+        for (int w = 0; w < words.length; w++) {
+            for (int hash : deletionHashes(words[w])) {
+                pairs[size++] = (long) (hash ^ Integer.MIN_VALUE) << 32 | w;
+            }
+        }
+        Arrays.sort(pairs);
+
+        // Words with repeated letters, like "letter", get the same deletion more than once
+        int unique = 0;
+        for (int i = 0; i < pairs.length; i++) {
+            if (unique == 0 || pairs[i] != pairs[unique - 1]) {
+                pairs[unique++] = pairs[i];
+            }
+        }
+        deletes = unique == pairs.length ? pairs : Arrays.copyOf(pairs, unique);
+
+        bucketBits = Math.max(1, Math.min(24, 32 - Integer.numberOfLeadingZeros(deletes.length)));
+        buckets = new int[(1 << bucketBits) + 1];
+        int bucket = 0;
+        for (int i = 0; i < deletes.length; i++) {
+            int first = bucket(hashOf(deletes[i]));
+            while (bucket <= first) {
+                buckets[bucket++] = i;
+            }
+        }
+        while (bucket < buckets.length) {
+            buckets[bucket++] = deletes.length;
+        }
+    }
+
+    @Override
+    public boolean contains(CharSequence word) {
+        return table.contains(word);
+    }
+
+    /**
+     * Finds the words of the dictionary within the distance of the index from a word.
+     * @param word The word, which is compared as it is.
+     * @return The words at a distance from 1 to the one of the index, sorted; the word itself is not included.
+     */
+    @Override
+    public TreeSet<String> suggestions(String word) {
+        TreeSet<String> found = new TreeSet<>();
+        int[] candidates = candidates(word);
+        int[][] rows = new int[3][word.length() + maxDistance + 1];
+        for (int candidate : candidates) {
+            int distance = distance(word, words[candidate], maxDistance, rows);
+            if (distance > 0 && distance <= maxDistance) {
+                found.add(words[candidate]);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Gets the words stored under a deletion of a word, without checking their distance.
+     * @return Their indexes, sorted and without repetitions.
+     */
+    private int[] candidates(String word) {
+        int length = word.length();
+        int[] candidates = new int[16];
+        int count = 0;
+        int[] hashes = deletionHashes(word);
+        // The ranges are all looked up before any is read, so the processor waits for their cache misses
+        // at the same time instead of one after the other
+        int[] starts = new int[hashes.length];
+        int[] ends = new int[hashes.length];
+        for (int h = 0; h < hashes.length; h++) {
+            int bucket = bucket(hashes[h]);
+            starts[h] = buckets[bucket];
+            ends[h] = buckets[bucket + 1];
+        }
+        // Then the first deletion of each range, for the same reason; most ranges hold just one
+        long[] firsts = new long[hashes.length];
+        for (int h = 0; h < hashes.length; h++) {
+            if (starts[h] < ends[h]) {
+                firsts[h] = deletes[starts[h]];
+            }
+        }
+        for (int h = 0; h < hashes.length; h++) {
+            for (int p = starts[h]; p < ends[h]; p++) {
+                long delete = p == starts[h] ? firsts[h] : deletes[p];
+                int candidate = (int) delete;
+                if (hashOf(delete) != hashes[h]) {
+                    continue;
+                }
+                if (Math.abs(words[candidate].length() - length) <= maxDistance) {
+                    if (count == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, count * 2);
+                    }
+                    candidates[count++] = candidate;
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || candidates[i] != candidates[unique - 1]) {
+                candidates[unique++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(candidates, unique);
+    }
+
+    private int bucket(int hash) {
+        return hash >>> (32 - bucketBits);
+    }
+
+    private static int hashOf(long delete) {
+        return (int) (delete >>> 32) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Hashes the deletions of up to maxDistance letters of a word, the word itself included.
+     * @return The hashes, some of which may be repeated.
+     */
+    private int[] deletionHashes(String word) {
+        int length = word.length();
+        char[] chars = word.toCharArray();
+        int[] hashes = new int[deletionCount(length)];
+        int count = 0;
+        hashes[count++] = hash(chars, length, -1, -1);
+        for (int i = 0; i < length; i++) {
+            hashes[count++] = hash(chars, length, i, -1);
+            if (maxDistance > 1) {
+                for (int j = i + 1; j < length; j++) {
+                    hashes[count++] = hash(chars, length, i, j);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @return The amount of deletions of up to maxDistance letters of a word of this length, the word itself
+     *    included.
+     */
+    private int deletionCount(int length) {
+        return 1 + length + (maxDistance > 1 ? length * (length - 1) / 2 : 0);
+    }
+
+    /**
+     * Hashes a word with up to two of its letters deleted, with FNV-1a, without building the deletion.
+     * @param skip1 The first letter deleted, or -1.
+     * @param skip2 The second letter deleted, or -1.
+     */
+    private static int hash(char[] chars, int length, int skip1, int skip2) {
+        int hash = 0x811c9dc5;
+        for (int p = 0; p < length; p++) {
+            if (p != skip1 && p != skip2) {
+                hash = (hash ^ chars[p]) * 0x01000193;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the optimal string alignment distance of two words, giving up once it exceeds a maximum.
+     * @param a The first word.
+     * @param b The second word.
+     * @param max The largest distance of interest.
+     * @return The distance, or max + 1 if it is larger than max.
+     */
+    static int distance(CharSequence a, CharSequence b, int max) {
+        int rowLength = b.length() + 1;
+        return distance(a, b, max, new int[3][rowLength]);
+    }
+
+    /**
+     * @param rows Three rows of at least b.length() + 1 values, reused by the lookups, whose content is lost.
+     */
+    private static int distance(CharSequence a, CharSequence b, int max, int[][] rows) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > max) {
+            return max + 1;
+        }
+        int[] previous2 = rows[0];
+        int[] previous = rows[1];
+        int[] current = rows[2];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= m; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, previous2[j - 2] + 1);
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] rotated = previous2;
+            previous2 = previous;
+            previous = current;
+            current = rotated;
+        }
+        return Math.min(previous[m], max + 1);
+    }
+
+    /**
+     * @return The table of the words of the index, which looks them up without allocating.
+     */
+    WordTable table() {
+        return table;
+    }
+
+    int maxDistance() {
+        return maxDistance;
+    }
+
+    int size() {
+        return words.length;
+    }
+
+    /**
+     * @return The amount of deletions stored, which sets the memory used by the index: 8 bytes each, plus
+     *    about 4 for the start of their range.
+     */
+    int deletionCount() {
+        return deletes.length;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Ranks the corrections of a misspelled word by how likely they are, instead of in alphabetical order: the
+ * score of a correction is the probability of the word in a text, from WordFrequencies, times the probability
+ * of the edits that turn it into the misspelled word, EDIT_PROBABILITY for each one (the optimal string
+ * alignment distance of SpellIndex). So a correction one edit away comes first unless one two edits away is
+ * a hundred times more common. A correction made of two words, from the insertion of a space, counts as one
+ * edit, with the probability of both words.
+ *
+ * Only the best corrections are kept, in a heap bounded to their amount, so the others are never sorted.
+ * Nothing is cached: SpellChecker already looks up each distinct word of the input once, through the set of
+ * the words read, and ParallelSpellChecker through the set of the words reported, so a repeated misspelling
+ * is only corrected once. The suggester only reads the dictionary and the counts, so it can be shared by
+ * threads.
+ */
+class SpellSuggester {
+
+    /**
+     * The probability that a word is mistyped with a given edit; only its order of magnitude matters.
+     */
+    static final double EDIT_PROBABILITY = 0.01;
+
+    private final SpellDictionary dictionary;
+    private final WordFrequencies frequencies;
+    private final int limit;
+
+    /**
+     * A correction and its score, ordered from the worst to the best, so the worst is the head of the heap.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+
+        final String word;
+        final double score;
+
+        Candidate(String word, double score) {
+            this.word = word;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int order = Double.compare(score, other.score);
+            // On the same score, the first word in alphabetical order is the better one
+            return order != 0 ? order : other.word.compareTo(word);
+        }
+    }
+
+    /**
+     * Creates a suggester.
+     * @param dictionary The dictionary the corrections are looked up in.
+     * @param frequencies The counts of the words of the dictionary.
+     * @param limit The largest amount of corrections suggested for a word.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    SpellSuggester(SpellDictionary dictionary, WordFrequencies frequencies, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The amount of suggestions must be positive: " + limit);
+        }
+        this.dictionary = dictionary;
+        this.frequencies = frequencies;
+        this.limit = limit;
+    }
+
+    /**
+     * Finds the best corrections of a misspelled word.
+     * @param badWord Possibly misspelled word. It is assumed not to be in the dictionary.
+     * @return The corrections, the most likely first; empty if none is found.
+     */
+    List<String> suggest(String badWord) {
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1);
+        for (String correction : SpellChecker.corrections(badWord, dictionary)) {
+            Candidate candidate = new Candidate(correction, score(badWord, correction));
+            if (best.size() < limit) {
+                best.add(candidate);
+            } else if (candidate.compareTo(best.peek()) > 0) {
+                best.poll();
+                best.add(candidate);
+            }
+        }
+        String[] ranked = new String[best.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            ranked[i] = best.poll().word;
+        }
+        return Arrays.asList(ranked);
+    }
+
+    /**
+     * @return The best corrections of a misspelled word separated by commas, as SpellChecker prints them, or
+     *    an empty string if none is found.
+     */
+    String suggestionLine(String badWord) {
+        return String.join(", ", suggest(badWord));
+    }
+
+    private double score(String badWord, String correction) {
+        int space = correction.indexOf(' ');
+        if (space >= 0) {
+            return frequencies.probability(correction.substring(0, space))
+                    * frequencies.probability(correction.substring(space + 1)) * EDIT_PROBABILITY;
+        }
+        int distance = SpellIndex.distance(badWord, correction, SpellIndex.MAX_DISTANCE);
+        return frequencies.probability(correction) * Math.pow(EDIT_PROBABILITY, distance);
+    }
+}
@@ -1,64 +1,476 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Scanner;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.JMException;
 
 /**
  * Class that implements a simple webserver that can obtain files and return error messages.
+ * Directories are answered with their index.html or, if they have none, with a listing of their files.
+ *
+ * The server is configured with system properties:
+ *  - webserver.threads: "platform" (default) serves every connection on a new platform thread,
+ *    "virtual" serves every connection on a virtual thread, when the JVM supports them (Java 21+).
+ *  - webserver.maxConcurrency: maximum amount of connections served at the same time, 0 (default) for
+ *    no limit. With platform threads, they are served by a pool of that many threads.
+ *  - webserver.queueSize: once webserver.maxConcurrency is reached, amount of connections that wait for
+ *    their turn (default 100). The connections beyond are answered at once with a 503 and closed, so under
+ *    overload some clients are turned away quickly instead of all of them being slowed down.
+ *  - webserver.backlog: length of the queue of the listening socket, for both engines (default 1024).
+ *  - webserver.acceptors: amount of threads accepting connections (default 1). On Linux, each one gets its own
+ *    listening socket bound to the same port with SO_REUSEPORT, so the kernel spreads the new connections
+ *    between them instead of having them all contend for one accept queue. With the nio engine, each one is an
+ *    event loop that serves the connections it accepts, instead of the event loops of webserver.loops. Where
+ *    SO_REUSEPORT is not available, the blocking engine accepts from a single socket with that many threads,
+ *    and the nio engine falls back to one acceptor handing out the connections to its event loops.
+ *  - webserver.maxConnectionsPerClient: amount of connections an IP address may have open at the same time,
+ *    for both engines, 0 (default) for no limit. Its connections beyond are answered with a 503 and closed.
+ *  - webserver.requestTimeoutSeconds: once the first byte of a request has arrived, how long its request line
+ *    and headers may take to arrive (default 10), so slow clients cannot hold a connection by sending a
+ *    request a few bytes at a time. The connection is then answered with a 408 and closed. For the first
+ *    request of a connection, the time starts when the connection is accepted.
+ *  - webserver.writeTimeoutSeconds: how long a response may take to be written (default 60), so clients that
+ *    stop reading cannot hold a connection either. The connection is then closed.
+ *  - webserver.shutdownSeconds: how long a shutdown waits for the connections being served (default 10).
+ *  - webserver.engine: "blocking" (default) serves every connection on its own thread, as configured above,
+ *    "nio" serves all the connections from a few event loops, see NioWebServer.
+ *  - webserver.zeroCopy: "true" (default) sends files with FileChannel.transferTo(), so the kernel copies
+ *    them straight from the page cache to the socket; "false" copies them through a direct buffer.
+ *  - webserver.keepAliveSeconds: how long an HTTP/1.1 connection is kept open waiting for its next request
+ *    after a response (default 5), 0 to close every connection after its first response.
+ *  - webserver.maxRequestsPerConnection: amount of requests served on one connection before it is closed
+ *    (default 100).
+ *  - webserver.cacheMaxBytes: bytes of small files kept in memory, see FileCache (default 32 MB), 0 to disable
+ *    the cache.
+ *  - webserver.cacheMaxFileBytes: size of the largest file kept in memory (default 256 KB).
+ *  - webserver.compressMinBytes: text files smaller than this are never compressed (default 1024).
+ *  - webserver.compressLevel: the deflate level, 1 to 9, used to compress the cached files (default 9; each
+ *    file is compressed once). Larger files are only sent compressed if they have a precompressed ".gz" sibling.
+ *  - webserver.maxHeaderBytes: size of the largest request line and headers accepted (default 8192), see HttpParser.
+ *  - webserver.maxHeaders: amount of headers accepted in a request (default 64).
+ *  - webserver.accessLog: the file the requests are logged to, see AccessLog (default "webserver-access.log" in
+ *    the temporary directory, outside of the files served), "" to disable the log.
+ *  - webserver.accessLogCapacity: amount of requests the log holds while they wait to be written (default 8192).
+ *  - webserver.mimeTypes: the file that maps extensions to content types, in the format of the mime.types
+ *    file of Apache and nginx, see MimeTypes (default "mime.types").
+ *  - webserver.metricsPath: the target that answers the metrics of ServerMetrics as text, instead of a file
+ *    (default "/metrics"), "" to only publish them through JMX.
  */
 public class WebServer {
     
     private static final int LISTENING_PORT = 50505;
     private static final String ROOT_DIR = ".";
+    private static final Path ROOT = Paths.get(ROOT_DIR).toAbsolutePath().normalize();
+
+    private static final String THREADS = System.getProperty("webserver.threads", "platform");
+    private static final int MAX_CONCURRENCY = Integer.getInteger("webserver.maxConcurrency", 0);
+    private static final int QUEUE_SIZE = Integer.getInteger("webserver.queueSize", 100);
+    static final int BACKLOG = Integer.getInteger("webserver.backlog", 1024);
+    static final int ACCEPTORS = Math.max(1, Integer.getInteger("webserver.acceptors", 1));
+    static final long ACCEPT_RETRY_MILLIS = 50;
+    private static final int MAX_CONNECTIONS_PER_CLIENT = Integer.getInteger("webserver.maxConnectionsPerClient", 0);
+    static final int REQUEST_TIMEOUT_SECONDS = Integer.getInteger("webserver.requestTimeoutSeconds", 10);
+    static final int WRITE_TIMEOUT_SECONDS = Integer.getInteger("webserver.writeTimeoutSeconds", 60);
+    private static final int SHUTDOWN_SECONDS = Integer.getInteger("webserver.shutdownSeconds", 10);
+    private static final String ENGINE = System.getProperty("webserver.engine", "blocking");
+    static final boolean ZERO_COPY = !System.getProperty("webserver.zeroCopy", "true").equals("false");
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 4096;
+    static final int KEEP_ALIVE_SECONDS = Integer.getInteger("webserver.keepAliveSeconds", 5);
+    static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("webserver.maxRequestsPerConnection", 100);
+    private static final long CACHE_MAX_BYTES = Long.getLong("webserver.cacheMaxBytes", 32 * 1024 * 1024);
+    private static final long CACHE_MAX_FILE_BYTES = Long.getLong("webserver.cacheMaxFileBytes", 256 * 1024);
+    static final int COMPRESS_MIN_BYTES = Integer.getInteger("webserver.compressMinBytes", 1024);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("webserver.compressLevel", Deflater.BEST_COMPRESSION);
+    static final FileCache FILE_CACHE = CACHE_MAX_BYTES > 0 ? new FileCache(CACHE_MAX_BYTES, CACHE_MAX_FILE_BYTES) : null;
+    private static final String ACCESS_LOG_FILE = System.getProperty("webserver.accessLog",
+            new File(System.getProperty("java.io.tmpdir"), "webserver-access.log").getPath());
+    private static final int ACCESS_LOG_CAPACITY = Integer.getInteger("webserver.accessLogCapacity", 8192);
+    private static final MimeTypes MIME_TYPES = MimeTypes.load(new File(System.getProperty("webserver.mimeTypes",
+            "mime.types")));
+    private static final String METRICS_PATH = System.getProperty("webserver.metricsPath", "/metrics");
+    private static final AccessLog ACCESS_LOG = openAccessLog();
+    static final ServerMetrics METRICS = new ServerMetrics(ACCESS_LOG);
+
+    // The connections open by each client, when they are limited
+    private static final ConcurrentHashMap<InetAddress, Integer> CLIENT_CONNECTIONS = new ConcurrentHashMap<>();
+    // The time by which the response being written on each connection must be written, 0 between responses
+    private static final ConcurrentHashMap<Socket, AtomicLong> WRITE_DEADLINES = new ConcurrentHashMap<>();
+
+    private static final DateTimeFormatter LISTING_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneOffset.UTC);
+
+    // Direct buffers of CHUNK_SIZE bytes, shared by the threads of both kinds: a thread-local one would be
+    // allocated again for every connection on virtual threads, each one its own thread
+    private static final int MAX_POOLED_CHUNKS = 64;
+    private static final ArrayBlockingQueue<ByteBuffer> CHUNKS = new ArrayBlockingQueue<>(MAX_POOLED_CHUNKS);
 	
 	/**
-	 * Main program opens a server socket and listens for connection
-	 * requests.  It calls the handleConnection() method to respond
-	 * to connection requests.  The program runs in an infinite loop,
-	 * unless an error occurs.
+	 * Main program opens the server sockets and listens for connection
+	 * requests, from webserver.acceptors threads.  It calls the handleConnection() method to respond
+	 * to connection requests, on the threads chosen by webserver.threads,
+	 * after checking that the client and the server are not over their
+	 * limits; otherwise the connection gets a 503 on the spot.
+	 * The program runs in an infinite loop, unless an error occurs or
+	 * the JVM is shut down, in which case the connections being served
+	 * are given SHUTDOWN_SECONDS to finish.
 	 * @param args ignored
 	 */
 	public static void main(String[] args) {
-		ServerSocket serverSocket;
+        if (FILE_CACHE != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(FILE_CACHE.statistics())));
+        }
+        if (ACCESS_LOG != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ACCESS_LOG::close));
+        }
+        try {
+            METRICS.registerMBean();
+        } catch (JMException e) {
+            System.out.println("Failed to publish the metrics through JMX: " + e);
+        }
+        if (ENGINE.equals("nio")) {
+            try {
+                NioWebServer.run(LISTENING_PORT);
+            } catch (IOException e) {
+                System.out.println("Failed to run the NIO engine: " + e);
+            }
+            return;
+        }
+
+		ServerSocketChannel[] listeners;
 		try {
-			serverSocket = new ServerSocket(LISTENING_PORT);
+			// Opened as channels, so accepted sockets have a channel that files can be transferred to
+			listeners = openListeners(LISTENING_PORT, ACCEPTORS);
 		}
 		catch (Exception e) {
 			System.out.println("Failed to create listening socket.");
 			return;
 		}
-		System.out.println("Listening on port " + LISTENING_PORT);
+        ExecutorService executor = createExecutor();
+        // A pool of platform threads limits and queues the connections by itself; virtual threads are not
+        // pooled, so the connections admitted and those served are counted instead
+        boolean pooled = executor instanceof ThreadPoolExecutor;
+        Semaphore admitted = MAX_CONCURRENCY > 0 && !pooled ? new Semaphore(MAX_CONCURRENCY + QUEUE_SIZE) : null;
+        Semaphore permits = MAX_CONCURRENCY > 0 && !pooled ? new Semaphore(MAX_CONCURRENCY) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(listeners, executor)));
+        if (WRITE_TIMEOUT_SECONDS > 0) {
+            Thread watchdog = new Thread(WebServer::closeStalledWrites, "write-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+
+		System.out.println("Listening on port " + LISTENING_PORT + " with " + ACCEPTORS + " acceptors on "
+                + listeners.length + " sockets");
+        for (int i = 1; i < ACCEPTORS; i++) {
+            ServerSocket serverSocket = listeners[i % listeners.length].socket();
+            new Thread(() -> acceptConnections(serverSocket, executor, admitted, permits), "acceptor-" + i).start();
+        }
+        acceptConnections(listeners[0].socket(), executor, admitted, permits);
+	}
+
+    /**
+     * Accepts connections and hands them to the executor, until the listening socket is closed. Run by each
+     * of the webserver.acceptors threads, the first one being the main thread. A failed accept, like running
+     * out of file descriptors under overload, is retried after ACCEPT_RETRY_MILLIS.
+     * @param admitted Counts the connections admitted when virtual threads are limited, otherwise null.
+     * @param permits Counts the connections served when virtual threads are limited, otherwise null.
+     */
+    private static void acceptConnections(ServerSocket serverSocket, ExecutorService executor, Semaphore admitted,
+            Semaphore permits) {
 		try {
 			while (true) {
-				Socket connection = serverSocket.accept();
-				System.out.println("\nConnection from " 
-						+ connection.getRemoteSocketAddress());
-                ConnectionThread thread = new ConnectionThread(connection);
-                thread.start();
+				Socket connection;
+                try {
+                    connection = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        throw e;
+                    }
+                    // The connection waits in the backlog for the next try
+                    System.out.println("Failed to accept a connection: " + e);
+                    pauseAccepting();
+                    continue;
+                }
+                InetAddress client = connection.getInetAddress();
+                if (!admitClient(client)) {
+                    reject(connection.getChannel(), client);
+                    continue;
+                }
+                if (admitted != null && !admitted.tryAcquire()) {
+                    releaseClient(client);
+                    reject(connection.getChannel(), client);
+                    continue;
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            if (permits != null) {
+                                permits.acquire();
+                            }
+                            try {
+                                handleConnection(connection);
+                            } finally {
+                                if (permits != null) {
+                                    permits.release();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            closeQuietly(connection); // interrupted by a shutdown while waiting for its turn
+                        } finally {
+                            if (admitted != null) {
+                                admitted.release();
+                            }
+                            releaseClient(client);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The queue of the pool is full, or the server is shutting down
+                    releaseClient(client);
+                    reject(connection.getChannel(), client);
+                }
 			}
 		}
 		catch (Exception e) {
+            if (serverSocket.isClosed()) {
+                System.out.println("Server shut down.");
+                return;
+            }
 			System.out.println("Server socket shut down unexpectedly!");
 			System.out.println("Error: " + e);
 			System.out.println("Exiting.");
 		}
 	}
 
+    /**
+     * Waits a little after a failed accept, so an error that lasts, like running out of file descriptors,
+     * does not keep an acceptor thread spinning until some connections are closed.
+     */
+    static void pauseAccepting() {
+        try {
+            Thread.sleep(ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Opens the listening sockets of the server, shared by both engines: one per acceptor, bound to the same
+     * port with SO_REUSEPORT, if there are several acceptors and the platform balances the connections between
+     * such sockets, which only Linux does; otherwise a single one.
+     * @param port The port to listen on.
+     * @param acceptors The amount of acceptors.
+     * @return The sockets, in blocking mode.
+     * @throws IOException If a socket cannot be opened or bound.
+     */
+    static ServerSocketChannel[] openListeners(int port, int acceptors) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = acceptors > 1 && System.getProperty("os.name").startsWith("Linux")
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (acceptors > 1 && !reusePort) {
+            System.out.println("SO_REUSEPORT is not available, using a single listening socket.");
+        }
+        ServerSocketChannel[] listeners = new ServerSocketChannel[reusePort ? acceptors : 1];
+        listeners[0] = first;
+        try {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == null) {
+                    listeners[i] = ServerSocketChannel.open();
+                }
+                if (reusePort) {
+                    listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                listeners[i].bind(new InetSocketAddress(port), BACKLOG);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) {
+                if (listener != null) {
+                    closeQuietly(listener);
+                }
+            }
+            throw e;
+        }
+        return listeners;
+    }
+
+    private static AccessLog openAccessLog() {
+        if (ACCESS_LOG_FILE.isEmpty()) {
+            return null;
+        }
+        try {
+            return new AccessLog(new File(ACCESS_LOG_FILE), ACCESS_LOG_CAPACITY);
+        } catch (IOException e) {
+            System.out.println("Failed to open the access log, requests will not be logged: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the executor that serves the connections. Virtual threads are looked up by reflection,
+     * so the server still runs on JVMs without them, falling back to platform threads. When the concurrency
+     * is limited, platform threads come from a fixed pool whose bounded queue rejects the connections beyond.
+     */
+    private static ExecutorService createExecutor() {
+        if (THREADS.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available, using platform threads.");
+            }
+        }
+        if (MAX_CONCURRENCY > 0) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_CONCURRENCY, MAX_CONCURRENCY, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, QUEUE_SIZE)));
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Counts a new connection of a client, unless the client already has webserver.maxConnectionsPerClient.
+     * Shared by both engines.
+     * @param client The address of the client.
+     * @return True if the connection is admitted, in which case releaseClient() must be called once it is closed.
+     */
+    static boolean admitClient(InetAddress client) {
+        if (MAX_CONNECTIONS_PER_CLIENT <= 0) {
+            return true;
+        }
+        if (CLIENT_CONNECTIONS.merge(client, 1, Integer::sum) > MAX_CONNECTIONS_PER_CLIENT) {
+            releaseClient(client);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a connection of a client that was admitted by admitClient().
+     * @param client The address of the client.
+     */
+    static void releaseClient(InetAddress client) {
+        if (MAX_CONNECTIONS_PER_CLIENT > 0) {
+            CLIENT_CONNECTIONS.computeIfPresent(client, (address, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Turns a connection away with a 503, without reading its request, and closes it. The response is small
+     * enough to fit in the empty send buffer of a new socket, so it is written at once even by the acceptor
+     * thread. Shared by both engines.
+     * @param channel The connection, in blocking mode.
+     * @param client The address of the client.
+     */
+    static void reject(SocketChannel channel, InetAddress client) {
+        long started = System.nanoTime();
+        HttpResponse response = HttpResponse.error(503, false);
+        try {
+            response.writeTo(channel);
+            recordResponse(client, null, null, null, response, started);
+        } catch (IOException e) {
+            // the client is gone already
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Run by the write watchdog of the blocking engine: closes the connections whose response has not been
+     * written within webserver.writeTimeoutSeconds, which makes the blocked write fail.
+     */
+    private static void closeStalledWrites() {
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            WRITE_DEADLINES.forEach((connection, deadline) -> {
+                long time = deadline.get();
+                if (time != 0 && now - time > 0) {
+                    try {
+                        // Closing the socket alone does not wake up a thread blocked in a sendfile call on it
+                        connection.shutdownOutput();
+                    } catch (IOException e) {
+                    }
+                    closeQuietly(connection);
+                }
+            });
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Stops accepting connections and waits for the ones being served to finish.
+     */
+    private static void shutdown(ServerSocketChannel[] listeners, ExecutorService executor) {
+        for (ServerSocketChannel listener : listeners) {
+            closeQuietly(listener);
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+
 	/**
 	 * Handle commuincation with one client connection.  This method reads
-	 * lines of text from the client and prints them to standard output.
-	 * It continues to read until the client closes the connection or
-	 * until an error occurs or until a blank line is read.  In a connection
-	 * from a Web browser, the first blank line marks the end of the request.
-	 * This method can run indefinitely,  waiting for the client to send a
-	 * blank line.
+	 * requests from the client with an HttpParser, which reuses the same
+	 * buffers for every request, answers them in order, including requests that were pipelined
+	 * behind the previous one.  It continues until the client closes the
+	 * connection, an error occurs, a response that closes the connection is
+	 * sent, or the client stays idle for KEEP_ALIVE_SECONDS.  A request that
+	 * takes more than REQUEST_TIMEOUT_SECONDS to arrive, counted from the
+	 * accept for the first one, gets a 408 if it has begun, and a
+	 * response that takes more than WRITE_TIMEOUT_SECONDS to be written is
+	 * cut by the write watchdog, which closes the socket.  Every response
+	 * is recorded in METRICS and the access log, see recordResponse().
 	 * NOTE:  This method does not throw any exceptions.  Exceptions are
 	 * caught and handled in the method, so that they will not shut down
 	 * the server.
@@ -67,38 +479,87 @@ public class WebServer {
 	 */
 	private static void handleConnection(Socket connection) {
 
+        METRICS.connectionOpened();
+        AtomicLong writeDeadline = new AtomicLong();
+        if (WRITE_TIMEOUT_SECONDS > 0) {
+            WRITE_DEADLINES.put(connection, writeDeadline);
+        }
+        HttpParser parser = new HttpParser();
 		try {
-			Scanner in = new Scanner(connection.getInputStream());
+            int idleTimeout = Math.max(1, KEEP_ALIVE_SECONDS) * 1000;
+            // The head and the body are separate writes; with Nagle's algorithm the body would wait for
+            // the client's delayed ACK of the head, which stalls every response after the first one
+            connection.setTcpNoDelay(true);
+            InputStream in = connection.getInputStream();
+            WritableByteChannel out = connection.getChannel() != null
+                    ? connection.getChannel() : Channels.newChannel(connection.getOutputStream());
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            buffer.flip();
+            int served = 0;
+            // When the request being received must be complete; the first one is due from the accept, so the
+            // keep-alive timeout only applies between requests
+            long requestDeadline = REQUEST_TIMEOUT_SECONDS > 0
+                    ? System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS) : 0;
 			while (true) {
-				if (!in.hasNextLine())
-					break;
-				String line = in.nextLine();
-				if (line.trim().length() == 0)
-					break;
-                System.out.println("   " + line);
-                String[] request = line.split(" ");
-                if (request[0].equals("GET")) {
-                    File file = new File(ROOT_DIR + request[1]);
-                    if (!file.exists() || file.isDirectory()) {
-                        sendErrorResponse(404, connection.getOutputStream());
-                        break;
-                    } else if (!file.canRead()) {
-                        sendErrorResponse(403, connection.getOutputStream());
-                    } else {
-                        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
-                        out.print("HTTP/1.1 200 OK\r\n");
-                        out.print("Connection: close\r\n");
-                        out.print("Content-Length: " + file.length() + "\r\n");
-                        out.print("Content-Type: " + getMimeType(file.getName()) + "\r\n");
-                        out.flush();
-                        sendFile(file, connection.getOutputStream());
-                        break;
+                HttpResponse response;
+                String method = null;
+                String target = null;
+                String version = null;
+                long started;
+                try {
+                    HttpRequest request = parser.parse(buffer);
+                    if (request == null) {
+                        // A waiting connection makes read() throw a SocketTimeoutException once the timeout expires
+                        int timeout = idleTimeout;
+                        if ((served == 0 || parser.inRequest()) && REQUEST_TIMEOUT_SECONDS > 0) {
+                            if (requestDeadline == 0) {
+                                requestDeadline = System.nanoTime()
+                                        + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+                            }
+                            long remaining = requestDeadline - System.nanoTime();
+                            timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+                        }
+                        connection.setSoTimeout(timeout);
+                        // The parser consumed everything, so the whole buffer can be read into
+                        int read = in.read(buffer.array());
+                        if (read < 0)
+                            break;
+                        buffer.position(0).limit(read);
+                        continue;
                     }
-                } else {
-                    sendErrorResponse(501, connection.getOutputStream());
+                    started = System.nanoTime();
+                    requestDeadline = 0;
+                    method = request.method();
+                    target = request.target();
+                    version = request.version();
+                    served++;
+                    response = respond(request, keepAlive(request, served));
+                } catch (HttpParser.ParseException e) {
+                    started = System.nanoTime();
+                    response = HttpResponse.error(e.status(), false);
+                }
+                if (WRITE_TIMEOUT_SECONDS > 0) {
+                    writeDeadline.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT_SECONDS));
                 }
+                response.writeTo(out);
+                writeDeadline.set(0);
+                recordResponse(connection.getInetAddress(), method, target, version, response, started);
+                if (!response.keepAlive())
+                    break;
 			}
 		}
+        catch (SocketTimeoutException e) {
+            if (parser.inRequest() && connection.getChannel() != null) {
+                // A request is stuck half way, which the client may be waiting an answer to
+                HttpResponse response = HttpResponse.error(408, false);
+                try {
+                    response.writeTo(connection.getChannel());
+                    recordResponse(connection.getInetAddress(), null, null, null, response, System.nanoTime());
+                } catch (IOException writeFailed) {
+                }
+            }
+            // otherwise the connection stayed idle for too long
+        }
 		catch (Exception e) {
             System.out.println("Error while communicating with client: " + e);
 		}
@@ -108,113 +569,572 @@ public class WebServer {
 			}
 			catch (Exception e) {
 			}
-			System.out.println("Connection closed.");
+            WRITE_DEADLINES.remove(connection);
+            METRICS.connectionClosed();
 		}
     }
+
+    /**
+     * Records a response that has been written, in METRICS and in the access log. Shared by both engines.
+     * @param client The address of the client.
+     * @param method The method of the request, or null if the request could not be parsed.
+     * @param target The target of the request.
+     * @param version The version of the request.
+     * @param response The response.
+     * @param started The System.nanoTime() when the request was parsed.
+     */
+    static void recordResponse(InetAddress client, String method, String target, String version, HttpResponse response,
+            long started) {
+        long micros = (System.nanoTime() - started) / 1000;
+        METRICS.recordResponse(response.status(), response.headLength() + response.length(), micros);
+        if (ACCESS_LOG != null) {
+            ACCESS_LOG.log(client, method, target, version, response.status(), response.length(), micros);
+        }
+    }
     
-    private static String getMimeType(String fileName) {
-
-        int pos = fileName.lastIndexOf('.');
-        if (pos < 0) // no file extension in name
-            return "x-application/x-unknown";
-        String ext = fileName.substring(pos + 1).toLowerCase();
-        if (ext.equals("txt"))
-            return "text/plain";
-        else if (ext.equals("html"))
-            return "text/html";
-        else if (ext.equals("htm"))
-            return "text/html";
-        else if (ext.equals("css"))
-            return "text/css";
-        else if (ext.equals("js"))
-            return "text/javascript";
-        else if (ext.equals("java"))
-            return "text/x-java";
-        else if (ext.equals("jpeg"))
-            return "image/jpeg";
-        else if (ext.equals("jpg"))
-            return "image/jpeg";
-        else if (ext.equals("png"))
-            return "image/png";
-        else if (ext.equals("gif"))
-            return "image/gif";
-        else if (ext.equals("ico"))
-            return "image/x-icon";
-        else if (ext.equals("class"))
-            return "application/java-vm";
-        else if (ext.equals("jar"))
-            return "application/java-archive";
-        else if (ext.equals("zip"))
-            return "application/zip";
-        else if (ext.equals("xml"))
-            return "application/xml";
-        else if (ext.equals("xhtml"))
-            return "application/xhtml+xml";
-        else
-            return "x-application/x-unknown";
-        // Note: x-application/x-unknown is something made up;
-        // it will probably make the browser offer to save the file.
-    }
-
-    private static void sendFile(File file, OutputStream socketOut) throws IOException {
-
-        InputStream in = new BufferedInputStream(new FileInputStream(file));
-        OutputStream out = new BufferedOutputStream(socketOut);
-        
-        while (true) {
-            int x = in.read(); // read one byte from file
-            if (x < 0)
-                break; // end of file reached
-            out.write(x); // write the byte to the socket
+    /**
+     * Decides whether a connection stays open after answering a request, following what the client asked
+     * for, webserver.keepAliveSeconds and webserver.maxRequestsPerConnection. Shared by both engines.
+     * @param request The request received.
+     * @param served The amount of requests received on the connection, including this one.
+     * @return True if the connection stays open for another request.
+     */
+    static boolean keepAlive(HttpRequest request, int served) {
+        return KEEP_ALIVE_SECONDS > 0 && served < MAX_REQUESTS_PER_CONNECTION && request.keepAlive();
+    }
+
+    /**
+     * Builds the response to a request. This method is shared by both engines, and does not do any I/O
+     * on the connection.
+     * @param request The request received.
+     * @param keepAlive Whether the connection stays open after the response.
+     * @return The response to send.
+     */
+    static HttpResponse respond(HttpRequest request, boolean keepAlive) {
+        String method = request.method();
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            return HttpResponse.error(501, false);  // the body of the request, if any, was not read
+        }
+        if (!METRICS_PATH.isEmpty() && request.hasTarget(METRICS_PATH)) {
+            HttpResponse metrics = HttpResponse.text(METRICS.toText(), "text/plain; version=0.0.4", keepAlive);
+            return head ? metrics.withoutBody() : metrics;
+        }
+        HttpResponse response = respondWithFile(request, keepAlive);
+        if (response.status() == 200) {
+            response = conditional(request, response);
+        }
+        return head ? response.withoutBody() : response;
+    }
+
+    /**
+     * Builds the 200 response that sends the requested file, or the error response if it cannot be sent.
+     * Files found in FILE_CACHE are answered from memory, without looking them up. Text files are sent
+     * compressed to the clients that accept gzip or deflate, unless a range of them is requested.
+     * A directory is answered with its index.html or, if it has none, with the listing of its files; it
+     * must be requested with a trailing slash, and is redirected to it otherwise.
+     */
+    private static HttpResponse respondWithFile(HttpRequest request, boolean keepAlive) {
+        String target = decodeTarget(request.target());
+        if (target == null) {
+            return HttpResponse.error(400, false);
+        }
+        boolean directoryTarget = target.endsWith("/");
+        Path path = resolveTarget(target);
+        if (path == null) {
+            return HttpResponse.error(404, keepAlive);  // outside of ROOT_DIR, as if it did not exist
+        }
+        File file = path.toFile();
+        // Ranges are served from the file as it is, so they can be resumed whatever the client accepts
+        String encoding = request.header("Range") != null ? null : negotiateEncoding(request.header("Accept-Encoding"));
+        if (FILE_CACHE != null) {
+            HttpResponse cached = FILE_CACHE.get(path, encoding, keepAlive, directoryTarget);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (!file.exists()) {
+            return HttpResponse.error(404, keepAlive);
+        } else if (!file.canRead()) {
+            return HttpResponse.error(403, keepAlive);
+        } else if (file.isDirectory()) {
+            if (!directoryTarget) {
+                String location = request.target();
+                int query = location.indexOf('?');
+                return HttpResponse.redirect(query < 0 ? location + "/" : location.substring(0, query) + "/"
+                        + location.substring(query), keepAlive);
+            }
+            return respondWithDirectory(file, path, encoding, keepAlive);
+        }
+        String mimeType = MIME_TYPES.get(file.getName());
+        if (FILE_CACHE != null) {
+            try {
+                HttpResponse loaded = FILE_CACHE.load(file, path, mimeType, encoding, keepAlive);
+                if (loaded != null) {
+                    return loaded;
+                }
+            } catch (IOException e) {
+                // not cached, so it is sent from the file, which reports the error if it persists
+            }
+        }
+        if (!isCompressible(mimeType)) {
+            return HttpResponse.file(file, mimeType, null, keepAlive);
+        }
+        // Too large to be compressed in memory, so only a precompressed copy can be sent compressed
+        File precompressed = "gzip".equals(encoding) ? precompressed(file) : null;
+        if (precompressed != null) {
+            return HttpResponse.file(precompressed, mimeType, "gzip", keepAlive);
         }
+        return HttpResponse.file(file, mimeType, "identity", keepAlive);
+    }
 
-        out.flush();
-        in.close();
+    /**
+     * Resolves a decoded target against ROOT_DIR, confining it there: ".." segments, including the encoded
+     * ones decodeTarget() turned into dots, cannot leave it.
+     * @param target The decoded target, as returned by decodeTarget().
+     * @return The absolute, normalized path it names, or null if it is outside of ROOT_DIR or not a valid path.
+     */
+    static Path resolveTarget(String target) {
+        int start = 0;
+        while (start < target.length() && (target.charAt(start) == '/' || target.charAt(start) == '\\')) {
+            start++;
+        }
+        Path path;
+        try {
+            path = ROOT.resolve(target.substring(start)).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return path.startsWith(ROOT) ? path : null;
     }
 
-    private static void sendErrorResponse(int errorCode, OutputStream socketOut) {
+    /**
+     * Builds the response of a directory, from FILE_CACHE if possible: its index.html, sent like any other
+     * file, or else its listing.
+     * @param path The absolute, normalized path of the directory.
+     */
+    private static HttpResponse respondWithDirectory(File directory, Path path, String encoding, boolean keepAlive) {
+        if (FILE_CACHE != null) {
+            try {
+                HttpResponse loaded = FILE_CACHE.loadDirectory(directory, path, encoding, keepAlive);
+                if (loaded != null) {
+                    return loaded;
+                }
+            } catch (IOException e) {
+                // not cached, so it is sent from the index, which reports the error if it persists
+            }
+        }
+        File index = indexFile(directory);
+        if (index != null) {
+            File precompressed = "gzip".equals(encoding) ? precompressed(index) : null;
+            if (precompressed != null) {
+                return HttpResponse.file(precompressed, "text/html", "gzip", keepAlive);
+            }
+            return HttpResponse.file(index, "text/html", "identity", keepAlive);
+        }
+        byte[] listing = renderListing(directory);
+        long now = System.currentTimeMillis();
+        return HttpResponse.content(ByteBuffer.wrap(listing), "text/html", null,
+                HttpResponse.etag(listing.length, now, null), now, keepAlive);
+    }
 
-        try (PrintWriter out = new PrintWriter(socketOut, true)) {
-            switch (errorCode) {
-                case 404:
-                    out.write("HTTP/1.1 404 Not Found\r\n");
-                    out.write("Connection: close\r\n");
-                    out.write("Content-Type: text/html\r\n");
-                    out.write("<html><head><title>Error</title></head><body><h2>Error: 404 Not Found</h2><p>The resource that you requested does not exist on this server.</p></body></html>");
-                    out.flush();
-                    break;
-                case 403:
-                    out.write("HTTP/1.1 403 Forbidden\r\n");
-                    out.write("Connection: close\r\n");
-                    out.write("Content-Type: text/html\r\n");
-                    out.write("<html><head><title>Error</title></head><body><h2>Error: 403 Forbidden</h2><p>The resource that you requested cannot be read by you.</p></body></html>");
-                    out.flush();
-                    break;
-                case 501:
-                    out.write("HTTP/1.1 501 Not Implemented\r\n");
-                    out.write("Connection: close\r\n");
-                    out.write("Content-Type: text/html\r\n");
-                    out.write("<html><head><title>Error</title></head><body><h2>Error: 501 Not Implemented</h2><p>The requested method is not implemented.</p></body></html>");
-                    out.flush();
-                    break;
-                default:
-                    throw new IOException("Error code failed");
+    /**
+     * Finds the index of a directory, the file sent instead of its listing.
+     * @param directory The directory.
+     * @return Its index.html, or null if it has none that can be read.
+     */
+    static File indexFile(File directory) {
+        File index = new File(directory, "index.html");
+        return index.isFile() && index.canRead() ? index : null;
+    }
+
+    /**
+     * Renders the listing of a directory as an HTML page: a table of its files, with the subdirectories
+     * first, as returned by DirectoryList.entries(), each one with a link relative to the directory, its
+     * size and its modification time.
+     * @param directory The directory.
+     * @return The page, encoded in UTF-8.
+     */
+    static byte[] renderListing(File directory) {
+        String relative = ROOT.relativize(directory.toPath().toAbsolutePath().normalize()).toString()
+                .replace(File.separatorChar, '/');
+        String title = escapeHtml(relative.isEmpty() ? "/" : "/" + relative + "/");
+        StringBuilder html = new StringBuilder(1024);
+        html.append("<html><head><meta charset=\"utf-8\"><title>Index of ").append(title)
+                .append("</title></head><body><h2>Index of ").append(title).append("</h2>\n<table>\n")
+                .append("<tr><th>Name</th><th>Size</th><th>Last modified</th></tr>\n");
+        if (!relative.isEmpty()) {
+            html.append("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+        }
+        for (File file : DirectoryList.entries(directory)) {
+            boolean isDirectory = file.isDirectory();
+            String name = file.getName() + (isDirectory ? "/" : "");
+            html.append("<tr><td><a href=\"").append(encodeTarget(name)).append("\">").append(escapeHtml(name))
+                    .append("</a></td><td>").append(isDirectory ? "-" : Long.toString(file.length()))
+                    .append("</td><td>").append(LISTING_DATE.format(Instant.ofEpochMilli(file.lastModified())))
+                    .append("</td></tr>\n");
+        }
+        html.append("</table></body></html>\n");
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the percent-encoded bytes of a request target, as UTF-8, and drops its query, which no file has.
+     * @param target The target of the request.
+     * @return The path it names, or null if it is malformed.
+     */
+    static String decodeTarget(String target) {
+        int query = target.indexOf('?');
+        if (query >= 0) {
+            target = target.substring(0, query);
+        }
+        if (target.indexOf('%') < 0) {
+            return target;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(target.length());
+        for (int i = 0; i < target.length(); i++) {
+            char c = target.charAt(i);
+            if (c == '%') {
+                int high = i + 2 < target.length() ? Character.digit(target.charAt(i + 1), 16) : -1;
+                int low = high >= 0 ? Character.digit(target.charAt(i + 2), 16) : -1;
+                if (low < 0 || (high == 0 && low == 0)) {
+                    return null;  // a file name cannot hold a NUL either
+                }
+                bytes.write(high * 16 + low);
+                i += 2;
+            } else {
+                bytes.write(c);
             }
-        } catch (Exception e) {
-            System.out.println("Something went wrong while trying to send error response: " + e.getMessage());
         }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
     }
 
-    private static class ConnectionThread extends Thread {
+    /**
+     * Percent-encodes a file name for a link, as UTF-8, so decodeTarget() gets it back.
+     */
+    private static String encodeTarget(String name) {
+        StringBuilder encoded = new StringBuilder(name.length() + 16);
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~/".indexOf(c) >= 0) {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
 
-        Socket connection;
+    private static String escapeHtml(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                escaped.append("&amp;");
+            } else if (c == '<') {
+                escaped.append("&lt;");
+            } else if (c == '>') {
+                escaped.append("&gt;");
+            } else if (c == '"') {
+                escaped.append("&quot;");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
 
-        ConnectionThread(Socket connection) {
-            this.connection = connection;
+    /**
+     * Answers the conditional and range headers of a request, given the 200 response that sends the whole
+     * file: the client gets a 304 if its copy is still valid, and a 206 or a 416 if it asked for a single
+     * range of bytes. Requests for several ranges get the whole file, which the specification allows.
+     * @param request The request received.
+     * @param response The response that sends the whole file.
+     * @return The response to send.
+     */
+    static HttpResponse conditional(HttpRequest request, HttpResponse response) {
+        if (notModified(request, response)) {
+            return response.notModified();
+        }
+        String range = request.header("Range");
+        if (range == null || !rangeStillValid(request.header("If-Range"), response)) {
+            return response;
+        }
+        long[] bounds = parseRange(range, response.length());
+        if (bounds == null) {
+            return response;
+        } else if (bounds.length == 0) {
+            return response.rangeNotSatisfiable();
         }
+        return response.partial(bounds[0], bounds[1]);
+    }
 
-        public void run() {
-            handleConnection(connection);
+    /**
+     * Checks If-None-Match, which takes precedence, or else If-Modified-Since. Entity tags are compared
+     * weakly, as the specification requires for this header.
+     */
+    private static boolean notModified(HttpRequest request, HttpResponse response) {
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = response.etag();
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || withoutWeakPrefix(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.header("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            // Header dates have no milliseconds
+            return since >= 0 && response.lastModified() / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Checks If-Range: a range is only sent if the client's copy is still the current one, compared strongly.
+     */
+    private static boolean rangeStillValid(String ifRange, HttpResponse response) {
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"")) {
+            return ifRange.equals(response.etag());
+        } else if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long date = parseDate(ifRange);
+        return date >= 0 && date / 1000 == response.lastModified() / 1000;
+    }
+
+    private static String withoutWeakPrefix(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static long parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a Range header with a single range of bytes: "bytes=first-last", "bytes=first-" or "bytes=-suffix".
+     * @param range The value of the header.
+     * @param length The length of the whole body.
+     * @return The offsets of the first and last bytes of the range, an empty array if the range is valid but
+     *    starts after the end of the body, or null if the header is not understood and must be ignored.
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if (first.isEmpty() && last.isEmpty() || !isDigits(first) || !isDigits(last)) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = length - 1;
+                if (!last.isEmpty()) {
+                    long requestedEnd = Long.parseLong(last);
+                    if (requestedEnd < start) {
+                        return null;
+                    }
+                    end = Math.min(requestedEnd, end);
+                }
+            }
+            return start >= length ? new long[0] : new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null; // too large for a long
+        }
+    }
+
+    private static boolean isDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Picks the encoding to send a text file in, from the Accept-Encoding header of a request.
+     * gzip is preferred to deflate whenever both are accepted, since every client that accepts
+     * deflate accepts gzip too, and precompressed files are only kept in gzip.
+     * @param acceptEncoding The value of the header, or null if there is none.
+     * @return "gzip", "deflate" or null if neither is accepted.
+     */
+    static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzip = quality;
+            } else if (name.equalsIgnoreCase("deflate")) {
+                deflate = quality;
+            } else if (name.equals("*")) {
+                any = quality;
+            }
+        }
+        // Codings that are not listed get the quality of "*", if it is present
+        if ((gzip < 0 ? any : gzip) > 0) {
+            return "gzip";
+        } else if ((deflate < 0 ? any : deflate) > 0) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * @return True if files of this type are worth compressing, that is, they are text.
+     */
+    static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.endsWith("xml");
+    }
+
+    /**
+     * Finds the precompressed copy of a file: its sibling with the ".gz" extension added, if it is not older
+     * than the file itself.
+     * @return The copy, or null if there is none that can be sent.
+     */
+    static File precompressed(File file) {
+        File compressed = new File(file.getPath() + ".gz");
+        if (compressed.isFile() && compressed.canRead() && compressed.lastModified() >= file.lastModified()) {
+            return compressed;
+        }
+        return null;
+    }
+
+    /**
+     * Compresses content with the level set by webserver.compressLevel.
+     * @param content The bytes to compress.
+     * @param encoding "gzip" or "deflate", the latter being the zlib format, as HTTP defines it.
+     * @return The compressed bytes.
+     */
+    static byte[] compress(byte[] content, String encoding) {
+        return compress(content, encoding, COMPRESS_LEVEL);
+    }
+
+    /**
+     * Compresses content with the given deflate level.
+     * @param content The bytes to compress.
+     * @param encoding "gzip" or "deflate".
+     * @param level The level, 1 (fastest) to 9 (smallest).
+     * @return The compressed bytes.
+     */
+    static byte[] compress(byte[] content, String encoding, int level) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+        Deflater deflater = encoding.equals("gzip") ? null : new Deflater(level);
+        try {
+            OutputStream out;
+            if (deflater == null) {
+                out = new GZIPOutputStream(bytes) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            } else {
+                out = new DeflaterOutputStream(bytes, deflater);
+            }
+            out.write(content);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Compressing in memory failed.", e); // cannot happen
+        } finally {
+            if (deflater != null) {
+                deflater.end(); // not owned by the stream, so close() does not release it
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends a region of a file to a blocking channel. With ZERO_COPY, the region is sent with transferTo(),
+     * which becomes a sendfile call for sockets; otherwise, or for whatever transferTo() did not send, it is
+     * copied in chunks through a direct buffer taken from a pool shared by the threads, and given back after.
+     * @param file The file to send.
+     * @param offset The offset of the first byte to send.
+     * @param length The amount of bytes to send.
+     * @param out The channel to write to.
+     * @throws IOException If the file cannot be read, is shorter than the region, or the channel fails.
+     */
+    static void sendFile(File file, long offset, long length, WritableByteChannel out) throws IOException {
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = offset;
+            long end = offset + length;
+
+            if (ZERO_COPY) {
+                while (position < end) {
+                    long sent = in.transferTo(position, end - position, out);
+                    if (sent <= 0)
+                        break; // no progress, copy the rest instead
+                    position += sent;
+                }
+            }
+
+            if (position == end)
+                return;
+            ByteBuffer chunk = CHUNKS.poll();
+            if (chunk == null)
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            try {
+                while (position < end) {
+                    chunk.clear();
+                    if (end - position < chunk.capacity())
+                        chunk.limit((int) (end - position));
+                    int read = in.read(chunk, position);
+                    if (read < 0)
+                        throw new IOException("File was truncated while it was sent.");
+                    position += read;
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                }
+            } finally {
+                // Dropped if the pool is full, so it never holds more than MAX_POOLED_CHUNKS
+                CHUNKS.offer(chunk);
+            }
         }
     }
 }
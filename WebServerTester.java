@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class WebServerTester {
+
+    public static void main(String[] args) throws IOException {
+
+        System.out.println("Resolving targets against the root directory...");
+
+        String[] inside = { "/", "/index.html", "/a/b/../c.txt", "//WebServer.java", "/a/%2e%2e/WebServer.java" };
+        for (String target : inside) {
+            String decoded = WebServer.decodeTarget(target);
+            System.out.println(target + " -> " + WebServer.resolveTarget(decoded));
+        }
+
+        System.out.println("Targets outside of the root directory, all expected to be null...");
+
+        String[] outside = { "/..", "/../", "/../../", "/%2e%2e/%2e%2e/", "/%2E%2E%2Fetc%2Fpasswd", "/a/../../etc/passwd",
+                "/a/%2e%2e/%2e%2e/" };
+        boolean confined = true;
+        for (String target : outside) {
+            String decoded = WebServer.decodeTarget(target);
+            Object resolved = decoded == null ? null : WebServer.resolveTarget(decoded);
+            System.out.println(target + " -> " + resolved);
+            confined &= resolved == null;
+        }
+        System.out.println("All confined: " + confined);
+
+        System.out.println("Parsing pipelined requests with bodies...");
+
+        HttpParser parser = new HttpParser();
+        ByteBuffer pipelined = ByteBuffer.wrap(("GET /a HTTP/1.1\r\nContent-Length: 22\r\n\r\n"
+                + "GET /smuggled HTTP/1.1\r\nGET /b HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        HttpRequest first = parser.parse(pipelined);
+        System.out.println("First: " + first.target() + ", keep-alive: " + first.keepAlive());
+        HttpRequest second = parser.parse(pipelined);
+        System.out.println("Second, after the skipped body: " + second.target());
+
+        HttpRequest chunked = new HttpParser().parse(ByteBuffer.wrap(
+                "GET /c HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        System.out.println("Chunked body, keep-alive: " + chunked.keepAlive());
+        try {
+            new HttpParser().parse(ByteBuffer.wrap(
+                    "GET /d HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            System.out.println("Unknown transfer coding accepted");
+        } catch (HttpParser.ParseException e) {
+            System.out.println("Unknown transfer coding: " + e.status());
+        }
+
+        System.out.println("Reading an nginx mime.types file...");
+
+        File nginx = File.createTempFile("mime", ".types");
+        nginx.deleteOnExit();
+        Files.write(nginx.toPath(), Arrays.asList("types {",
+                "    text/html                             html htm shtml;",
+                "    image/png                             png;  # a comment",
+                "    application/vnd.openxmlformats-officedocument.presentationml.presentation",
+                "                                          pptx;",
+                "}"), StandardCharsets.UTF_8);
+        MimeTypes types = MimeTypes.load(nginx);
+        System.out.println("htm: " + types.get("a.htm") + ", PNG: " + types.get("b.PNG"));
+        System.out.println("pptx: " + types.get("c.pptx"));
+        System.out.println("Braces and semicolons ignored: " + (types.get("d.types").equals(MimeTypes.UNKNOWN)
+                && types.get("e.{").equals(MimeTypes.UNKNOWN) && types.get("f.png;").equals(MimeTypes.UNKNOWN)));
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unigram counts of the words of a dictionary, read from a file of lines "word count" (or "word\tcount"), the
+ * format of the frequency lists of SymSpell and of the Google Web Trillion Word Corpus. They give the
+ * probability of a word in a text, which SpellSuggester uses to rank the corrections of a misspelled word.
+ * Every count is raised by one, so the words missing from the file are less probable than any word listed
+ * but not impossible.
+ *
+ * The counts are immutable once read, so they can be shared by any number of threads.
+ */
+class WordFrequencies {
+
+    private final WordTable table;
+    private final long[] counts;
+    private final double total;
+
+    private WordFrequencies(String[] words, long[] counts) {
+        this.table = new WordTable(words);
+        this.counts = counts;
+        double sum = words.length + 1; // the ones added, and one for all the missing words
+        for (long count : counts) {
+            sum += count;
+        }
+        this.total = sum;
+    }
+
+    /**
+     * Reads a file of counts. The words are lower-cased, and the counts of a word listed more than once added.
+     * @param file The file.
+     * @return The counts.
+     * @throws IOException If the file cannot be read, or a line has no valid count.
+     */
+    static WordFrequencies load(Path file) throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                long count;
+                try {
+                    count = fields.length == 2 ? Long.parseLong(fields[1]) : -1;
+                } catch (NumberFormatException e) {
+                    count = -1;
+                }
+                if (count < 0) {
+                    throw new IOException("Invalid count in line " + lineNumber + " of " + file + ": " + line);
+                }
+                counts.merge(fields[0].toLowerCase(), count, Long::sum);
+            }
+        }
+        String[] words = counts.keySet().toArray(new String[0]);
+        long[] values = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            values[i] = counts.get(words[i]);
+        }
+        return new WordFrequencies(words, values);
+    }
+
+    /**
+     * @return Counts that give every word the same probability, for a dictionary without a file of counts.
+     */
+    static WordFrequencies uniform() {
+        return new WordFrequencies(new String[0], new long[0]);
+    }
+
+    /**
+     * @param word A lower-case word.
+     * @return The probability of the word in a text, never 0.
+     */
+    double probability(CharSequence word) {
+        int index = table.indexOf(word);
+        return (index < 0 ? 1 : counts[index] + 1) / total;
+    }
+
+    int size() {
+        return counts.length;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Hash table of the words of a dictionary that looks up a range of a char array, or any CharSequence, without
+ * building a String of it: the hash is computed over the chars themselves, with FNV-1a, and the words found
+ * in the table are compared char by char. A word found is returned as the String stored in the table, so a
+ * lookup never allocates.
+ *
+ * The table is open addressing with linear probing, at most half full, and keeps the hash of each word next
+ * to its index so most of the words met while probing are skipped without being read.
+ * A table is immutable once built, so it can be read by any number of threads.
+ */
+class WordTable {
+
+    private final String[] words;
+    // The index of the word in each slot plus one, 0 for an empty slot
+    private final int[] slots;
+    private final int[] hashes;
+    private final int mask;
+
+    /**
+     * Builds the table of a list of words.
+     * @param words The words, which are compared as they are. The array is kept, so it must not change.
+     */
+    WordTable(String[] words) {
+        this.words = words;
+        int capacity = Integer.highestOneBit(Math.max(2, words.length * 2 - 1)) << 1;
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        for (int w = 0; w < words.length; w++) {
+            int hash = hash(words[w]);
+            int slot = hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = w + 1;
+            hashes[slot] = hash;
+        }
+    }
+
+    /**
+     * Looks up a range of chars.
+     * @return The index of the word made of chars[start] to chars[start + length - 1], or -1 if there is none.
+     */
+    int indexOf(char[] chars, int start, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < start + length; i++) {
+            hash = (hash ^ chars[i]) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash) {
+                String word = words[slots[slot] - 1];
+                if (word.length() == length && equals(word, chars, start)) {
+                    return slots[slot] - 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up a word.
+     * @return Its index, or -1 if it is not in the table.
+     */
+    int indexOf(CharSequence word) {
+        int hash = hash(word);
+        int length = word.length();
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash) {
+                String found = words[slots[slot] - 1];
+                if (found.length() == length && found.contentEquals(word)) {
+                    return slots[slot] - 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    boolean contains(char[] chars, int start, int length) {
+        return indexOf(chars, start, length) >= 0;
+    }
+
+    boolean contains(CharSequence word) {
+        return indexOf(word) >= 0;
+    }
+
+    /**
+     * @param index An index returned by indexOf().
+     * @return The word, as stored in the table.
+     */
+    String word(int index) {
+        return words[index];
+    }
+
+    int size() {
+        return words.length;
+    }
+
+    /**
+     * Hashes a word with FNV-1a, the high bits folded into the low ones the table uses.
+     */
+    private static int hash(CharSequence word) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < word.length(); i++) {
+            hash = (hash ^ word.charAt(i)) * 0x01000193;
+        }
+        return hash ^ hash >>> 16;
+    }
+
+    private static boolean equals(String word, char[] chars, int start) {
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}